@@ -0,0 +1,105 @@
+/*
+ * Copyright [2016] [Alexander Reelsen]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.elasticsearch.plugin.ingest.opennlp;
+
+import org.elasticsearch.common.settings.Settings;
+
+import java.net.URISyntaxException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Generates reproducible documents and services for the benchmarks, using the models from the test resources
+ */
+final class BenchmarkCorpus {
+
+    static final List<String> MODELS = Collections.unmodifiableList(
+            Arrays.asList("names", "locations", "dates", "money", "organization", "percentage"));
+
+    private static final String[] SENTENCES = new String[] {
+            "Kobe Bryant was one of the best basketball players of all times.",
+            "Not even Michael Jordan has ever scored 81 points in one game.",
+            "Munich is really an awesome city, but New York is as well.",
+            "Yesterday has been the hottest day of the year.",
+            "Shares of Siemens rose 3.5 percent to $ 120 after the company beat estimates on Tuesday.",
+            "The weather was nice, so we spent the afternoon in the park.",
+            "Angela Merkel met Emmanuel Macron in Paris last week to discuss the budget.",
+            "Revenue at General Electric fell by 12 percent to 3 billion dollars in the second quarter.",
+            "this sentence is all lower case and does not mention anybody at all.",
+            "Read more at example.com and follow us for further updates.",
+    };
+
+    private BenchmarkCorpus() {
+    }
+
+    /**
+     * Builds a document of roughly the given number of characters out of a fixed set of sentences
+     */
+    static String document(int length, long seed) {
+        Random random = new Random(seed);
+        StringBuilder builder = new StringBuilder(length + 128);
+        while (builder.length() < length) {
+            if (builder.length() > 0) {
+                builder.append(' ');
+            }
+            builder.append(SENTENCES[random.nextInt(SENTENCES.length)]);
+        }
+        return builder.toString();
+    }
+
+    static int length(String size) {
+        switch (size) {
+            case "short":
+                return 200;
+            case "medium":
+                return 5_000;
+            case "long":
+                return 200_000;
+            default:
+                throw new IllegalArgumentException("unknown document size [" + size + "]");
+        }
+    }
+
+    static Set<String> models(int count) {
+        return new LinkedHashSet<>(MODELS.subList(0, count));
+    }
+
+    static OpenNlpService service() throws URISyntaxException {
+        Settings settings = Settings.builder()
+                .put("ingest.opennlp.model.file.names", "en-ner-persons.bin")
+                .put("ingest.opennlp.model.file.locations", "en-ner-locations.bin")
+                .put("ingest.opennlp.model.file.dates", "en-ner-dates.bin")
+                .put("ingest.opennlp.model.file.money", "en-ner-money.bin")
+                .put("ingest.opennlp.model.file.organization", "en-ner-organization.bin")
+                .put("ingest.opennlp.model.file.percentage", "en-ner-percentage.bin")
+                .put("ingest.opennlp.tokenizer.file.sentences", "en-sent.bin")
+                .put("ingest.opennlp.misc.file.sentiment", "en-stanford-sentiment.bin")
+                .build();
+        return new OpenNlpService(modelDirectory(), settings).start();
+    }
+
+    private static Path modelDirectory() throws URISyntaxException {
+        return Paths.get(BenchmarkCorpus.class.getResource("/models/en-ner-persons.bin").toURI()).getParent();
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright [2016] [Alexander Reelsen]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.elasticsearch.plugin.ingest.opennlp;
+
+import org.elasticsearch.ingest.IngestDocument;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures a full {@link OpenNlpProcessor#execute(IngestDocument)} including reading and writing the document, on one
+ * and on four threads sharing the processor
+ */
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+public class OpenNlpProcessorBenchmark {
+
+    @Param({"short", "medium", "long"})
+    public String documentSize;
+
+    @Param({"1", "3", "6"})
+    public int models;
+
+    private OpenNlpProcessor processor;
+    private String content;
+
+    @Setup
+    public void setUp() throws Exception {
+        OpenNlpService service = BenchmarkCorpus.service();
+        processor = new OpenNlpProcessor(service, "benchmark", Collections.singletonList("content"), "entities",
+                BenchmarkCorpus.models(models));
+        content = BenchmarkCorpus.document(BenchmarkCorpus.length(documentSize), 42);
+    }
+
+    @Benchmark
+    public IngestDocument execute() throws Exception {
+        Map<String, Object> source = new HashMap<>();
+        source.put("content", content);
+        IngestDocument document = new IngestDocument("index", "type", "id", null, null, source);
+        processor.execute(document);
+        return document;
+    }
+
+    @Benchmark
+    @Threads(4)
+    public IngestDocument executeFourThreads() throws Exception {
+        return execute();
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright [2016] [Alexander Reelsen]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.elasticsearch.plugin.ingest.opennlp;
+
+import opennlp.tools.sentdetect.SentenceDetectorME;
+import opennlp.tools.tokenize.SimpleTokenizer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the building blocks of {@link OpenNlpService}. The service is shared across all benchmark threads just like
+ * on an ingest node, the full analysis runs on one, two and four threads to show how it scales.
+ */
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+public class OpenNlpServiceBenchmark {
+
+    @Param({"short", "medium", "long"})
+    public String documentSize;
+
+    @Param({"1", "3", "6"})
+    public int models;
+
+    private OpenNlpService service;
+    private String content;
+    private Set<String> fields;
+
+    @Setup
+    public void setUp() throws Exception {
+        service = BenchmarkCorpus.service();
+        content = BenchmarkCorpus.document(BenchmarkCorpus.length(documentSize), 42);
+        fields = BenchmarkCorpus.models(models);
+    }
+
+    @Benchmark
+    public Set<String> find() {
+        return service.find(content, "names");
+    }
+
+    @Benchmark
+    public Map<String, Set<String>> analyze() {
+        return service.analyze(content, fields);
+    }
+
+    @Benchmark
+    @Threads(2)
+    public Map<String, Set<String>> analyzeTwoThreads() {
+        return service.analyze(content, fields);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Map<String, Set<String>> analyzeFourThreads() {
+        return service.analyze(content, fields);
+    }
+
+    @Benchmark
+    public String sentiment() {
+        return service.getSentiment(content);
+    }
+
+    @Benchmark
+    public String[] sentenceDetection() {
+        DecoderPool<SentenceDetectorME> pool = service.getSentenceDetectorPool();
+        SentenceDetectorME detector = pool.acquire();
+        try {
+            return detector.sentDetect(content);
+        } finally {
+            pool.release(detector);
+        }
+    }
+
+    @Benchmark
+    public String[] tokenization() {
+        return SimpleTokenizer.INSTANCE.tokenize(content);
+    }
+
+    @Benchmark
+    public int tokenOffsets() {
+        TokenBuffer buffer = TokenBuffer.get();
+        try {
+            return buffer.tokenize(content, 0, content.length());
+        } finally {
+            buffer.trim();
+        }
+    }
+}
@@ -0,0 +1,346 @@
+/*
+ * Copyright [2016] [Alexander Reelsen]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.elasticsearch.plugin.ingest.opennlp;
+
+import opennlp.tools.ml.maxent.GISModel;
+import opennlp.tools.ml.model.Context;
+import opennlp.tools.ml.model.MaxentModel;
+import org.apache.lucene.util.Accountable;
+import org.apache.lucene.util.RamUsageEstimator;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * A compact copy of a maxent model. OpenNLP keeps a map from feature strings to context objects, each with its own
+ * arrays. Here features are looked up by their 64 bit hash in an open addressing table, and a hit is confirmed against
+ * the feature string, which is stored with all others in a single char array. The outcomes and parameters of all
+ * features are stored back to back in two arrays.
+ *
+ * Probabilities are computed with exactly the same operations in the same order as {@link GISModel} does with its
+ * uniform prior, so decoding yields identical results. A model is only converted if both agree on a sample of contexts,
+ * which rules out models trained with a different prior. {@link #getDataStructures()} rebuilds the structures of the
+ * original model, but the model is not an AbstractModel, so OpenNLP cannot write it back to a file.
+ */
+final class CompactMaxentModel implements MaxentModel, Accountable {
+
+    private static final long BASE_RAM_BYTES_USED = RamUsageEstimator.shallowSizeOfInstance(CompactMaxentModel.class);
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+    private static final long GOLDEN_RATIO = 0x9E3779B97F4A7C15L;
+
+    private final String[] outcomeNames;
+    private final double logPrior;
+    private final double correctionConstant;
+    private final double constantInverse;
+    private final double correctionParam;
+
+    private final long[] keys;
+    // feature id plus one, zero marks an empty slot
+    private final int[] table;
+    private final int shift;
+    // the feature strings back to back, feature i spans from charOffsets[i] to charOffsets[i + 1]
+    private final char[] chars;
+    private final int[] charOffsets;
+    private final int[] offsets;
+    private final int[] outcomes;
+    private final double[] parameters;
+
+    private CompactMaxentModel(String[] outcomeNames, double correctionConstant, double correctionParam, long[] keys, int[] table,
+                               char[] chars, int[] charOffsets, int[] offsets, int[] outcomes, double[] parameters) {
+        this.outcomeNames = outcomeNames;
+        // the uniform prior of GISModel
+        this.logPrior = Math.log(1.0 / outcomeNames.length);
+        this.correctionConstant = correctionConstant;
+        this.constantInverse = 1.0 / correctionConstant;
+        this.correctionParam = correctionParam;
+        this.keys = keys;
+        this.table = table;
+        this.shift = 64 - Integer.numberOfTrailingZeros(table.length);
+        this.chars = chars;
+        this.charOffsets = charOffsets;
+        this.offsets = offsets;
+        this.outcomes = outcomes;
+        this.parameters = parameters;
+    }
+
+    /**
+     * @return the compact copy of the model, or null if the model cannot be converted or would yield other probabilities
+     */
+    static CompactMaxentModel of(MaxentModel model) {
+        if (model instanceof GISModel == false) {
+            return null;
+        }
+        Object[] data = model.getDataStructures();
+        if (data == null || data.length < 5 || data[0] instanceof Context[] == false || data[1] instanceof Map == false) {
+            return null;
+        }
+        Context[] params = (Context[]) data[0];
+        Map<?, ?> features = (Map<?, ?>) data[1];
+        String[] outcomeNames = (String[]) data[2];
+
+        int count = features.size();
+        int capacity = Integer.highestOneBit(Math.max(1, count * 2 - 1)) << 1;
+        long[] keys = new long[capacity];
+        int[] table = new int[capacity];
+        int shift = 64 - Integer.numberOfTrailingZeros(capacity);
+        Context[] contexts = new Context[count];
+        String[] names = new String[count];
+        StringBuilder chars = new StringBuilder();
+        int[] charOffsets = new int[count + 1];
+        int total = 0;
+        int id = 0;
+        for (Map.Entry<?, ?> entry : features.entrySet()) {
+            Context context = context(entry.getValue(), params);
+            if (context == null || entry.getKey() instanceof String == false) {
+                return null;
+            }
+            String name = (String) entry.getKey();
+            long key = hash(name);
+            int slot = (int) ((key * GOLDEN_RATIO) >>> shift);
+            // features with the same hash just take the next free slots, lookups tell them apart by their string
+            while (table[slot] != 0) {
+                slot = (slot + 1) & (capacity - 1);
+            }
+            keys[slot] = key;
+            table[slot] = id + 1;
+            chars.append(name);
+            charOffsets[id + 1] = chars.length();
+            names[id] = name;
+            contexts[id++] = context;
+            total += context.getOutcomes().length;
+        }
+
+        int[] offsets = new int[count + 1];
+        int[] outcomes = new int[total];
+        double[] parameters = new double[total];
+        for (int i = 0; i < count; i++) {
+            int[] contextOutcomes = contexts[i].getOutcomes();
+            double[] contextParameters = contexts[i].getParameters();
+            System.arraycopy(contextOutcomes, 0, outcomes, offsets[i], contextOutcomes.length);
+            System.arraycopy(contextParameters, 0, parameters, offsets[i], contextOutcomes.length);
+            offsets[i + 1] = offsets[i] + contextOutcomes.length;
+        }
+        CompactMaxentModel compact = new CompactMaxentModel(outcomeNames, ((Number) data[3]).doubleValue(),
+                ((Number) data[4]).doubleValue(), keys, table, chars.toString().toCharArray(), charOffsets, offsets, outcomes, parameters);
+        return sameProbabilities(model, compact, names) ? compact : null;
+    }
+
+    /**
+     * The prior of a GISModel is not part of its data structures. The compact model assumes the uniform prior, which
+     * is verified by comparing the probabilities of the empty context, of every feature on its own for a sample of the
+     * features, and of all sampled features together.
+     */
+    private static boolean sameProbabilities(MaxentModel model, CompactMaxentModel compact, String[] features) {
+        if (Arrays.equals(model.eval(new String[0]), compact.eval(new String[0])) == false) {
+            return false;
+        }
+        int step = Math.max(1, features.length / 256);
+        String[] sample = new String[(features.length + step - 1) / step];
+        for (int i = 0; i < sample.length; i++) {
+            sample[i] = features[i * step];
+            String[] context = new String[] { sample[i] };
+            if (Arrays.equals(model.eval(context), compact.eval(context)) == false) {
+                return false;
+            }
+        }
+        return Arrays.equals(model.eval(sample), compact.eval(sample));
+    }
+
+    // depending on the OpenNLP version, features map to their context or to its index
+    private static Context context(Object value, Context[] params) {
+        if (value instanceof Context) {
+            return (Context) value;
+        } else if (value instanceof Integer && (Integer) value < params.length) {
+            return params[(Integer) value];
+        }
+        return null;
+    }
+
+    static long hash(String feature) {
+        long hash = FNV_OFFSET;
+        for (int i = 0; i < feature.length(); i++) {
+            hash ^= feature.charAt(i);
+            hash *= FNV_PRIME;
+        }
+        return hash;
+    }
+
+    private int find(String feature) {
+        if (feature == null) {
+            return -1;
+        }
+        long key = hash(feature);
+        int mask = table.length - 1;
+        for (int slot = (int) ((key * GOLDEN_RATIO) >>> shift); ; slot = (slot + 1) & mask) {
+            int id = table[slot] - 1;
+            if (id < 0) {
+                return -1;
+            }
+            // an unknown feature may share the hash of a known one
+            if (keys[slot] == key && matches(id, feature)) {
+                return id;
+            }
+        }
+    }
+
+    private boolean matches(int id, String feature) {
+        int start = charOffsets[id];
+        if (charOffsets[id + 1] - start != feature.length()) {
+            return false;
+        }
+        for (int i = 0; i < feature.length(); i++) {
+            if (chars[start + i] != feature.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private String feature(int id) {
+        return new String(chars, charOffsets[id], charOffsets[id + 1] - charOffsets[id]);
+    }
+
+    @Override
+    public double[] eval(String[] context) {
+        return eval(context, null, new double[outcomeNames.length]);
+    }
+
+    @Override
+    public double[] eval(String[] context, double[] probs) {
+        return eval(context, null, probs);
+    }
+
+    @Override
+    public double[] eval(String[] context, float[] values) {
+        return eval(context, values, new double[outcomeNames.length]);
+    }
+
+    private double[] eval(String[] context, float[] values, double[] outsums) {
+        int numOutcomes = outcomeNames.length;
+        Arrays.fill(outsums, 0, numOutcomes, logPrior);
+        int[] numfeats = correctionParam != 0 ? new int[numOutcomes] : null;
+        double value = 1;
+        for (int ci = 0; ci < context.length; ci++) {
+            int feature = find(context[ci]);
+            if (feature < 0) {
+                continue;
+            }
+            if (values != null) {
+                value = values[ci];
+            }
+            for (int p = offsets[feature]; p < offsets[feature + 1]; p++) {
+                int oid = outcomes[p];
+                if (numfeats != null) {
+                    numfeats[oid]++;
+                }
+                outsums[oid] += parameters[p] * value;
+            }
+        }
+
+        double normal = 0.0;
+        for (int oid = 0; oid < numOutcomes; oid++) {
+            if (numfeats != null) {
+                outsums[oid] = Math.exp(outsums[oid] * constantInverse
+                        + ((1.0 - ((double) numfeats[oid] / correctionConstant)) * correctionParam));
+            } else {
+                outsums[oid] = Math.exp(outsums[oid] * constantInverse);
+            }
+            normal += outsums[oid];
+        }
+        for (int oid = 0; oid < numOutcomes; oid++) {
+            outsums[oid] /= normal;
+        }
+        return outsums;
+    }
+
+    @Override
+    public String getBestOutcome(double[] outcomes) {
+        int best = 0;
+        for (int i = 1; i < outcomes.length; i++) {
+            if (outcomes[i] > outcomes[best]) {
+                best = i;
+            }
+        }
+        return outcomeNames[best];
+    }
+
+    @Override
+    public String getAllOutcomes(double[] outcomes) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < outcomes.length && i < outcomeNames.length; i++) {
+            if (i > 0) {
+                builder.append("  ");
+            }
+            builder.append(outcomeNames[i]).append('[').append(String.format(Locale.ROOT, "%.4f", outcomes[i])).append(']');
+        }
+        return builder.toString();
+    }
+
+    @Override
+    public String getOutcome(int i) {
+        return outcomeNames[i];
+    }
+
+    @Override
+    public int getIndex(String outcome) {
+        for (int i = 0; i < outcomeNames.length; i++) {
+            if (outcomeNames[i].equals(outcome)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public int getNumOutcomes() {
+        return outcomeNames.length;
+    }
+
+    /**
+     * Rebuilds the parameters, the map from features to their parameters, the outcome names and the correction
+     * constant and parameter, just like {@code AbstractModel#getDataStructures()} returns them
+     */
+    @Override
+    public Object[] getDataStructures() {
+        int count = features();
+        Context[] params = new Context[count];
+        Map<String, Context> pmap = new HashMap<>(count * 2);
+        for (int i = 0; i < count; i++) {
+            params[i] = new Context(Arrays.copyOfRange(outcomes, offsets[i], offsets[i + 1]),
+                    Arrays.copyOfRange(parameters, offsets[i], offsets[i + 1]));
+            pmap.put(feature(i), params[i]);
+        }
+        return new Object[] { params, pmap, outcomeNames.clone(), (int) correctionConstant, correctionParam };
+    }
+
+    int features() {
+        return offsets.length - 1;
+    }
+
+    @Override
+    public long ramBytesUsed() {
+        return BASE_RAM_BYTES_USED + RamUsageEstimator.shallowSizeOf(outcomeNames) + RamUsageEstimator.sizeOf(keys)
+                + RamUsageEstimator.sizeOf(table) + RamUsageEstimator.sizeOf(chars) + RamUsageEstimator.sizeOf(charOffsets)
+                + RamUsageEstimator.sizeOf(offsets) + RamUsageEstimator.sizeOf(outcomes)
+                + RamUsageEstimator.sizeOf(parameters);
+    }
+}
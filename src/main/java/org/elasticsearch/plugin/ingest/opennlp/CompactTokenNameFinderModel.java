@@ -0,0 +1,61 @@
+/*
+ * Copyright [2016] [Alexander Reelsen]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.elasticsearch.plugin.ingest.opennlp;
+
+import opennlp.tools.ml.model.MaxentModel;
+import opennlp.tools.namefind.TokenNameFinderModel;
+import org.apache.lucene.util.Accountable;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A name finder model whose maxent model is replaced by a {@link CompactMaxentModel} right after loading, so the original
+ * model can be garbage collected. Decoders created from it score against the compact form.
+ */
+final class CompactTokenNameFinderModel extends TokenNameFinderModel implements Accountable {
+
+    // the artifact TokenNameFinderModel#getNameFinderSequenceModel wraps into a beam search
+    private static final String MAXENT_MODEL_ENTRY_NAME = "nameFinder.model";
+
+    private final CompactMaxentModel compact;
+
+    CompactTokenNameFinderModel(InputStream in) throws IOException {
+        super(in);
+        Object model = artifactMap.get(MAXENT_MODEL_ENTRY_NAME);
+        this.compact = model instanceof MaxentModel ? CompactMaxentModel.of((MaxentModel) model) : null;
+        if (compact != null) {
+            artifactMap.put(MAXENT_MODEL_ENTRY_NAME, compact);
+        }
+    }
+
+    /**
+     * @return false if the model type is not supported, in which case the original model is used
+     */
+    boolean isCompact() {
+        return compact != null;
+    }
+
+    /**
+     * @return the size of the compact model, or 0 if the model is not compact and its size is unknown
+     */
+    @Override
+    public long ramBytesUsed() {
+        return compact == null ? 0 : compact.ramBytesUsed();
+    }
+}
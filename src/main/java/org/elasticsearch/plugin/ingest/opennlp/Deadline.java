@@ -0,0 +1,70 @@
+/*
+ * Copyright [2016] [Alexander Reelsen]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.elasticsearch.plugin.ingest.opennlp;
+
+/**
+ * The point in time by which the analysis of a document has to be done. It is checked between sentences, models and
+ * chunks, so a single model run on a single sentence is never interrupted. Once expired, it stays expired, which tells
+ * the caller afterwards that the result is incomplete.
+ */
+final class Deadline {
+
+    /**
+     * A deadline that never expires
+     */
+    static final Deadline NONE = new Deadline(0, false);
+
+    private final long nanos;
+    private final boolean bounded;
+    private volatile boolean expired;
+
+    private Deadline(long nanos, boolean bounded) {
+        this.nanos = nanos;
+        this.bounded = bounded;
+    }
+
+    /**
+     * @return a deadline the given number of nanoseconds from now, or {@link #NONE} if that is not positive
+     */
+    static Deadline after(long timeoutNanos) {
+        return timeoutNanos > 0 ? new Deadline(System.nanoTime() + timeoutNanos, true) : NONE;
+    }
+
+    /**
+     * @return true if the deadline has passed, in which case the caller should stop analyzing
+     */
+    boolean check() {
+        if (bounded == false) {
+            return false;
+        }
+        if (expired) {
+            return true;
+        }
+        if (System.nanoTime() - nanos > 0) {
+            expired = true;
+        }
+        return expired;
+    }
+
+    /**
+     * @return true if a previous {@link #check()} found the deadline passed, so some work has been skipped
+     */
+    boolean expired() {
+        return expired;
+    }
+}
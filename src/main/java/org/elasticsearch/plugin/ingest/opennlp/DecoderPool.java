@@ -0,0 +1,78 @@
+/*
+ * Copyright [2016] [Alexander Reelsen]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.elasticsearch.plugin.ingest.opennlp;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * A bounded pool of decoder instances (name finders, sentence detectors, sentiment) for a single model.
+ *
+ * OpenNLP decoders are not thread safe, so every caller borrows its own instance and hands it back when done.
+ * The pool is not bound to any thread, so threads of the write pool can come and go without leaking decoders.
+ * If the pool is empty a new instance is created, if it is full a returned instance is dropped.
+ */
+final class DecoderPool<T> {
+
+    private final Supplier<T> factory;
+    private final Consumer<T> reset;
+    private final BlockingQueue<T> idle;
+
+    private final LongAdder created = new LongAdder();
+    private final LongAdder reused = new LongAdder();
+
+    DecoderPool(int size, Supplier<T> factory, Consumer<T> reset) {
+        this.factory = factory;
+        this.reset = reset;
+        this.idle = new ArrayBlockingQueue<>(size);
+    }
+
+    DecoderPool(int size, Supplier<T> factory) {
+        this(size, factory, decoder -> {});
+    }
+
+    T acquire() {
+        T decoder = idle.poll();
+        if (decoder == null) {
+            created.increment();
+            return factory.get();
+        }
+        reused.increment();
+        return decoder;
+    }
+
+    void release(T decoder) {
+        reset.accept(decoder);
+        idle.offer(decoder);
+    }
+
+    long created() {
+        return created.sum();
+    }
+
+    long reused() {
+        return reused.sum();
+    }
+
+    int idle() {
+        return idle.size();
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright [2016] [Alexander Reelsen]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.elasticsearch.plugin.ingest.opennlp;
+
+import java.util.Arrays;
+import java.util.Set;
+
+/**
+ * Collects the entities a model found as character offsets into the analyzed text. Strings are only created at the
+ * end, once per distinct entity, no matter how often it occurs in the text.
+ *
+ * An entity always starts and ends at a token boundary, so tokenizing its range again yields exactly the tokens the
+ * model saw, which are joined by a single space just like {@link opennlp.tools.util.Span#spansToStrings} does.
+ */
+final class EntityCollector {
+
+    private int[] offsets = new int[16];
+    private int size;
+
+    void add(int start, int end) {
+        if (size == offsets.length) {
+            offsets = Arrays.copyOf(offsets, size << 1);
+        }
+        offsets[size++] = start;
+        offsets[size++] = end;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Adds the distinct entities to the target. The buffer is used to tokenize the entities again, so it must not hold
+     * the tokens of a sentence that is still in use.
+     */
+    void addTo(Set<String> target, CharSequence text, TokenBuffer tokens) {
+        int count = size >> 1;
+        // open addressing over the distinct entities, so duplicates are compared as characters and never become strings
+        int capacity = Integer.highestOneBit(Math.max(2, count) << 1);
+        String[] distinct = new String[capacity];
+        int[] hashes = new int[capacity];
+        int mask = capacity - 1;
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < size; i += 2) {
+            builder.setLength(0);
+            tokens.tokenize(text, offsets[i], offsets[i + 1]);
+            tokens.appendJoined(text, builder);
+            int hash = hash(builder);
+            int slot = hash & mask;
+            while (distinct[slot] != null && (hashes[slot] != hash || distinct[slot].contentEquals(builder) == false)) {
+                slot = (slot + 1) & mask;
+            }
+            if (distinct[slot] == null) {
+                distinct[slot] = builder.toString();
+                hashes[slot] = hash;
+                target.add(distinct[slot]);
+            }
+        }
+    }
+
+    private static int hash(CharSequence chars) {
+        int hash = 0;
+        for (int i = 0; i < chars.length(); i++) {
+            hash = 31 * hash + chars.charAt(i);
+        }
+        return hash ^ (hash >>> 16);
+    }
+}
@@ -0,0 +1,410 @@
+/*
+ * Copyright [2016] [Alexander Reelsen]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.elasticsearch.plugin.ingest.opennlp;
+
+import opennlp.tools.namefind.TokenNameFinder;
+import opennlp.tools.tokenize.SimpleTokenizer;
+import opennlp.tools.util.Span;
+import org.apache.lucene.util.Accountable;
+import org.apache.lucene.util.RamUsageEstimator;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A name finder for closed lists of entities like customers, products or cities. All entries of a dictionary are
+ * compiled into a token level Aho-Corasick automaton, which finds every entry in a single pass over the tokens of a
+ * sentence, no matter how many entries there are. Overlapping matches are resolved leftmost longest.
+ *
+ * The automaton lives in a few primitive arrays instead of an object per token and state, so dictionaries with millions
+ * of entries stay compact and do not burden the garbage collector. It is immutable and can be shared by all threads.
+ */
+final class GazetteerNameFinder implements TokenNameFinder, Accountable {
+
+    private static final long BASE_RAM_BYTES_USED = RamUsageEstimator.shallowSizeOfInstance(GazetteerNameFinder.class);
+
+    private static final int ROOT = 0;
+    private static final int NOT_FOUND = -1;
+    private static final long FREE = -1L;
+
+    private final String type;
+    // the characters of all distinct tokens back to back, token i spans tokenOffsets[i] until tokenOffsets[i + 1]
+    private final char[] tokenChars;
+    private final int[] tokenOffsets;
+    // open addressing table of token ids plus one, zero marks a free slot
+    private final int[] tokenTable;
+    // open addressing table of the transitions, the key holds the source state in the upper and the token in the lower half
+    private final long[] transitionKeys;
+    private final int[] transitionTargets;
+    // per state: the failure link, the number of tokens of the entry ending in it (or zero) and the next state on the
+    // failure chain an entry ends in
+    private final int[] failures;
+    private final int[] matchLengths;
+    private final int[] outputs;
+    private final int entries;
+
+    private GazetteerNameFinder(String type, char[] tokenChars, int[] tokenOffsets, int[] tokenTable, long[] transitionKeys,
+                                int[] transitionTargets, int[] failures, int[] matchLengths, int[] outputs, int entries) {
+        this.type = type;
+        this.tokenChars = tokenChars;
+        this.tokenOffsets = tokenOffsets;
+        this.tokenTable = tokenTable;
+        this.transitionKeys = transitionKeys;
+        this.transitionTargets = transitionTargets;
+        this.failures = failures;
+        this.matchLengths = matchLengths;
+        this.outputs = outputs;
+        this.entries = entries;
+    }
+
+    /**
+     * Reads a dictionary with one entry per line. Entries are tokenized the same way as the analyzed text, empty lines
+     * and lines starting with {@code #} are skipped.
+     */
+    static GazetteerNameFinder load(String type, Path path) throws IOException {
+        Builder builder = new Builder(type);
+        try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() == false && line.startsWith("#") == false) {
+                    builder.add(SimpleTokenizer.INSTANCE.tokenize(line));
+                }
+            }
+        }
+        return builder.build();
+    }
+
+    @Override
+    public Span[] find(String[] tokens) {
+        // the longest entry starting at each token, only allocated once something matched
+        int[] longest = null;
+        int state = ROOT;
+        for (int i = 0; i < tokens.length; i++) {
+            int token = findToken(tokenChars, tokenOffsets, tokenTable, tokens[i]);
+            if (token == NOT_FOUND) {
+                // no entry contains this token, so no match can continue across it
+                state = ROOT;
+                continue;
+            }
+
+            int next;
+            while ((next = findTransition(transitionKeys, transitionTargets, state, token)) == NOT_FOUND && state != ROOT) {
+                state = failures[state];
+            }
+            state = next == NOT_FOUND ? ROOT : next;
+
+            for (int match = matchLengths[state] > 0 ? state : outputs[state]; match != ROOT; match = outputs[match]) {
+                if (longest == null) {
+                    longest = new int[tokens.length];
+                }
+                int start = i + 1 - matchLengths[match];
+                longest[start] = Math.max(longest[start], matchLengths[match]);
+            }
+        }
+
+        if (longest == null) {
+            return new Span[0];
+        }
+        List<Span> spans = new ArrayList<>();
+        for (int start = 0; start < tokens.length; ) {
+            if (longest[start] > 0) {
+                spans.add(new Span(start, start + longest[start], type));
+                start += longest[start];
+            } else {
+                start++;
+            }
+        }
+        return spans.toArray(new Span[spans.size()]);
+    }
+
+    @Override
+    public void clearAdaptiveData() {
+        // a dictionary has no state between sentences
+    }
+
+    int entries() {
+        return entries;
+    }
+
+    int states() {
+        return failures.length;
+    }
+
+    int tokens() {
+        return tokenOffsets.length - 1;
+    }
+
+    @Override
+    public long ramBytesUsed() {
+        return BASE_RAM_BYTES_USED + RamUsageEstimator.sizeOf(tokenChars) + RamUsageEstimator.sizeOf(tokenOffsets)
+                + RamUsageEstimator.sizeOf(tokenTable) + RamUsageEstimator.sizeOf(transitionKeys)
+                + RamUsageEstimator.sizeOf(transitionTargets) + RamUsageEstimator.sizeOf(failures)
+                + RamUsageEstimator.sizeOf(matchLengths) + RamUsageEstimator.sizeOf(outputs);
+    }
+
+    private static int findToken(char[] chars, int[] offsets, int[] table, String token) {
+        int mask = table.length - 1;
+        for (int slot = hashToken(token) & mask; ; slot = (slot + 1) & mask) {
+            int id = table[slot] - 1;
+            if (id < 0) {
+                return NOT_FOUND;
+            }
+            if (equals(chars, offsets[id], offsets[id + 1], token)) {
+                return id;
+            }
+        }
+    }
+
+    private static int findTransition(long[] keys, int[] targets, int state, int token) {
+        long key = transitionKey(state, token);
+        int mask = keys.length - 1;
+        for (int slot = hashTransition(key) & mask; ; slot = (slot + 1) & mask) {
+            if (keys[slot] == key) {
+                return targets[slot];
+            }
+            if (keys[slot] == FREE) {
+                return NOT_FOUND;
+            }
+        }
+    }
+
+    private static boolean equals(char[] chars, int from, int to, String token) {
+        if (to - from != token.length()) {
+            return false;
+        }
+        for (int i = from; i < to; i++) {
+            if (chars[i] != token.charAt(i - from)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long transitionKey(int state, int token) {
+        return ((long) state << 32) | token;
+    }
+
+    private static int hashToken(String token) {
+        int h = 0;
+        for (int i = 0; i < token.length(); i++) {
+            h = 31 * h + token.charAt(i);
+        }
+        return mix(h);
+    }
+
+    private static int hashToken(char[] chars, int from, int to) {
+        int h = 0;
+        for (int i = from; i < to; i++) {
+            h = 31 * h + chars[i];
+        }
+        return mix(h);
+    }
+
+    private static int hashTransition(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private static int mix(int h) {
+        h *= 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Collects the entries into a trie and computes the failure links once all entries are known
+     */
+    static final class Builder {
+
+        private final String type;
+
+        private char[] tokenChars = new char[1024];
+        private int charCount;
+        private int[] tokenOffsets = new int[256];
+        private int tokenCount;
+        private int[] tokenTable = new int[256];
+
+        private long[] transitionKeys = newKeys(256);
+        private int[] transitionTargets = new int[256];
+        private int transitionCount;
+
+        // per state, the trie structure is only needed until the failure links are computed
+        private int[] parents = new int[256];
+        private int[] stateTokens = new int[256];
+        private int[] depths = new int[256];
+        private int[] matchLengths = new int[256];
+        private int stateCount = 1;
+        private int entries;
+
+        Builder(String type) {
+            this.type = type;
+        }
+
+        Builder add(String[] entry) {
+            if (entry.length == 0) {
+                return this;
+            }
+            int state = ROOT;
+            for (String token : entry) {
+                int id = tokenId(token);
+                int next = findTransition(transitionKeys, transitionTargets, state, id);
+                if (next == NOT_FOUND) {
+                    next = newState(state, id);
+                    addTransition(state, id, next);
+                }
+                state = next;
+            }
+            if (matchLengths[state] == 0) {
+                entries++;
+            }
+            matchLengths[state] = entry.length;
+            return this;
+        }
+
+        GazetteerNameFinder build() {
+            // breadth first, the failure link of a state only depends on shallower states
+            int maxDepth = 0;
+            for (int s = 0; s < stateCount; s++) {
+                maxDepth = Math.max(maxDepth, depths[s]);
+            }
+            int[] firstOfDepth = new int[maxDepth + 2];
+            for (int s = 0; s < stateCount; s++) {
+                firstOfDepth[depths[s] + 1]++;
+            }
+            for (int d = 1; d < firstOfDepth.length; d++) {
+                firstOfDepth[d] += firstOfDepth[d - 1];
+            }
+            int[] order = new int[stateCount];
+            for (int s = 0; s < stateCount; s++) {
+                order[firstOfDepth[depths[s]]++] = s;
+            }
+
+            int[] failures = new int[stateCount];
+            int[] outputs = new int[stateCount];
+            for (int i = 1; i < stateCount; i++) {
+                int state = order[i];
+                int parent = parents[state];
+                int failure = ROOT;
+                if (parent != ROOT) {
+                    int candidate = failures[parent];
+                    int next;
+                    while ((next = findTransition(transitionKeys, transitionTargets, candidate, stateTokens[state])) == NOT_FOUND
+                            && candidate != ROOT) {
+                        candidate = failures[candidate];
+                    }
+                    failure = next == NOT_FOUND ? ROOT : next;
+                }
+                failures[state] = failure;
+                outputs[state] = matchLengths[failure] > 0 ? failure : outputs[failure];
+            }
+
+            return new GazetteerNameFinder(type, Arrays.copyOf(tokenChars, charCount), Arrays.copyOf(tokenOffsets, tokenCount + 1),
+                    tokenTable, transitionKeys, transitionTargets, failures, Arrays.copyOf(matchLengths, stateCount), outputs, entries);
+        }
+
+        private int tokenId(String token) {
+            int id = findToken(tokenChars, tokenOffsets, tokenTable, token);
+            if (id != NOT_FOUND) {
+                return id;
+            }
+
+            id = tokenCount++;
+            if (tokenCount + 1 > tokenOffsets.length) {
+                tokenOffsets = Arrays.copyOf(tokenOffsets, tokenOffsets.length * 2);
+            }
+            while (charCount + token.length() > tokenChars.length) {
+                tokenChars = Arrays.copyOf(tokenChars, tokenChars.length * 2);
+            }
+            token.getChars(0, token.length(), tokenChars, charCount);
+            charCount += token.length();
+            tokenOffsets[id + 1] = charCount;
+
+            if (tokenCount * 2 > tokenTable.length) {
+                tokenTable = new int[tokenTable.length * 2];
+                for (int i = 0; i < tokenCount; i++) {
+                    insertToken(i);
+                }
+            } else {
+                insertToken(id);
+            }
+            return id;
+        }
+
+        private void insertToken(int id) {
+            int mask = tokenTable.length - 1;
+            int slot = hashToken(tokenChars, tokenOffsets[id], tokenOffsets[id + 1]) & mask;
+            while (tokenTable[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            tokenTable[slot] = id + 1;
+        }
+
+        private int newState(int parent, int token) {
+            int state = stateCount++;
+            if (stateCount > parents.length) {
+                int size = parents.length * 2;
+                parents = Arrays.copyOf(parents, size);
+                stateTokens = Arrays.copyOf(stateTokens, size);
+                depths = Arrays.copyOf(depths, size);
+                matchLengths = Arrays.copyOf(matchLengths, size);
+            }
+            parents[state] = parent;
+            stateTokens[state] = token;
+            depths[state] = depths[parent] + 1;
+            return state;
+        }
+
+        private void addTransition(int state, int token, int target) {
+            transitionCount++;
+            if (transitionCount * 2 > transitionKeys.length) {
+                long[] keys = transitionKeys;
+                int[] targets = transitionTargets;
+                transitionKeys = newKeys(keys.length * 2);
+                transitionTargets = new int[keys.length * 2];
+                for (int i = 0; i < keys.length; i++) {
+                    if (keys[i] != FREE) {
+                        insertTransition(keys[i], targets[i]);
+                    }
+                }
+            }
+            insertTransition(transitionKey(state, token), target);
+        }
+
+        private void insertTransition(long key, int target) {
+            int mask = transitionKeys.length - 1;
+            int slot = hashTransition(key) & mask;
+            while (transitionKeys[slot] != FREE) {
+                slot = (slot + 1) & mask;
+            }
+            transitionKeys[slot] = key;
+            transitionTargets[slot] = target;
+        }
+
+        private static long[] newKeys(int size) {
+            long[] keys = new long[size];
+            Arrays.fill(keys, FREE);
+            return keys;
+        }
+    }
+}
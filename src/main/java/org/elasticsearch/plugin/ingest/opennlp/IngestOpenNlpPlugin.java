@@ -17,37 +17,188 @@
 
 package org.elasticsearch.plugin.ingest.opennlp;
 
+import org.elasticsearch.client.Client;
+import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
+import org.elasticsearch.cluster.node.DiscoveryNodes;
+import org.elasticsearch.cluster.service.ClusterService;
+import org.elasticsearch.common.settings.ClusterSettings;
+import org.elasticsearch.common.settings.IndexScopedSettings;
 import org.elasticsearch.common.settings.Setting;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.settings.SettingsFilter;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.NamedXContentRegistry;
 import org.elasticsearch.ingest.Processor;
+import org.elasticsearch.plugins.ActionPlugin;
 import org.elasticsearch.plugins.IngestPlugin;
 import org.elasticsearch.plugins.Plugin;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestHandler;
+import org.elasticsearch.script.ScriptService;
+import org.elasticsearch.threadpool.ExecutorBuilder;
+import org.elasticsearch.threadpool.FixedExecutorBuilder;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.watcher.ResourceWatcherService;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.file.Path;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 import static org.elasticsearch.common.settings.Setting.groupSetting;
 
-public class IngestOpenNlpPlugin extends Plugin implements IngestPlugin {
+public class IngestOpenNlpPlugin extends Plugin implements IngestPlugin, ActionPlugin {
 
     public static final Setting<Settings> MODEL_FILE_SETTINGS = groupSetting("ingest.opennlp.model.file.", Setting.Property.NodeScope);
+    // ingest.opennlp.model.<language>.file.*, note that this also matches the default models
+    public static final Setting<Settings> LANGUAGE_MODEL_SETTINGS = groupSetting("ingest.opennlp.model.", Setting.Property.NodeScope);
+    public static final Setting<String> LANGUAGE_DEFAULT_SETTING =
+            new Setting<>("ingest.opennlp.language.default", "eng", Function.identity(), Setting.Property.NodeScope);
+    public static final Setting<Boolean> LANGUAGE_FALLBACK_SETTING =
+            Setting.boolSetting("ingest.opennlp.language.fallback", false, Setting.Property.NodeScope);
+    public static final Setting<Settings> DICTIONARY_FILE_SETTINGS =
+            groupSetting("ingest.opennlp.dictionary.file.", Setting.Property.NodeScope);
+    public static final Setting<Settings> PATTERN_SETTINGS = groupSetting("ingest.opennlp.pattern.", Setting.Property.NodeScope);
     public static final Setting<Settings> SENTENCE_FILE_SETTINGS =
             groupSetting("ingest.opennlp.tokenizer.file.", Setting.Property.NodeScope);
     public static final Setting<Settings> MISC_FILE_SETTINGS =
             groupSetting("ingest.opennlp.misc.file.", Setting.Property.NodeScope);
+    public static final Setting<Integer> DECODER_POOL_SIZE_SETTING =
+            Setting.intSetting("ingest.opennlp.decoder_pool.size", Runtime.getRuntime().availableProcessors(), 1,
+                    Setting.Property.NodeScope);
+    public static final Setting<Boolean> LAZY_LOAD_SETTING =
+            Setting.boolSetting("ingest.opennlp.lazy_load", false, Setting.Property.NodeScope);
+    // zero means that the models may use as much heap as they need
+    public static final Setting<ByteSizeValue> MEMORY_BUDGET_SETTING =
+            Setting.byteSizeSetting("ingest.opennlp.memory.budget", new ByteSizeValue(0), Setting.Property.NodeScope);
+    public static final Setting<TimeValue> MEMORY_IDLE_TIMEOUT_SETTING =
+            Setting.positiveTimeSetting("ingest.opennlp.memory.idle_timeout", TimeValue.timeValueMillis(0), Setting.Property.NodeScope);
+    public static final Setting<List<String>> MEMORY_PINNED_SETTING =
+            Setting.listSetting("ingest.opennlp.memory.pinned", Collections.emptyList(), Function.identity(), Setting.Property.NodeScope);
+    public static final Setting<Boolean> MEMORY_COMPACT_SETTING =
+            Setting.boolSetting("ingest.opennlp.memory.compact", false, Setting.Property.NodeScope);
+    public static final Setting<Boolean> RELOAD_ENABLED_SETTING =
+            Setting.boolSetting("ingest.opennlp.reload.enabled", true, Setting.Property.NodeScope);
+
+    public static final Setting<Boolean> CACHE_ENABLED_SETTING =
+            Setting.boolSetting("ingest.opennlp.cache.enabled", false, Setting.Property.NodeScope);
+    public static final Setting<ByteSizeValue> CACHE_SIZE_SETTING =
+            Setting.byteSizeSetting("ingest.opennlp.cache.size", new ByteSizeValue(16, ByteSizeUnit.MB), Setting.Property.NodeScope);
+    public static final Setting<TimeValue> CACHE_EXPIRE_SETTING =
+            Setting.positiveTimeSetting("ingest.opennlp.cache.expire", TimeValue.timeValueMillis(0), Setting.Property.NodeScope);
+    public static final Setting<Boolean> SENTENCE_CACHE_ENABLED_SETTING =
+            Setting.boolSetting("ingest.opennlp.sentence_cache.enabled", false, Setting.Property.NodeScope);
+    public static final Setting<Integer> SENTENCE_CACHE_SIZE_SETTING =
+            Setting.intSetting("ingest.opennlp.sentence_cache.size", 65536, 64, Setting.Property.NodeScope);
+    public static final Setting<Boolean> PARALLEL_ENABLED_SETTING =
+            Setting.boolSetting("ingest.opennlp.parallel.enabled", false, Setting.Property.NodeScope);
+    public static final Setting<Integer> PARALLEL_MIN_LENGTH_SETTING =
+            Setting.intSetting("ingest.opennlp.parallel.min_length", 100_000, 1, Setting.Property.NodeScope);
+    public static final Setting<Integer> PARALLEL_THREADS_SETTING =
+            Setting.intSetting("ingest.opennlp.parallel.threads", Math.max(1, Runtime.getRuntime().availableProcessors() / 2), 1,
+                    Setting.Property.NodeScope);
+    public static final Setting<Integer> WARMUP_DOCUMENTS_SETTING =
+            Setting.intSetting("ingest.opennlp.warmup.documents", 0, 0, Setting.Property.NodeScope);
+    public static final Setting<TimeValue> WARMUP_MAX_TIME_SETTING =
+            Setting.positiveTimeSetting("ingest.opennlp.warmup.max_time", TimeValue.timeValueSeconds(30), Setting.Property.NodeScope);
+    public static final Setting<String> WARMUP_FILE_SETTING =
+            new Setting<>("ingest.opennlp.warmup.file", "", Function.identity(), Setting.Property.NodeScope);
+    public static final Setting<TimeValue> SLOWLOG_THRESHOLD_WARN_SETTING = slowLogThresholdSetting("warn");
+    public static final Setting<TimeValue> SLOWLOG_THRESHOLD_INFO_SETTING = slowLogThresholdSetting("info");
+    public static final Setting<TimeValue> SLOWLOG_THRESHOLD_DEBUG_SETTING = slowLogThresholdSetting("debug");
+    public static final Setting<Integer> SLOWLOG_SOURCE_SETTING =
+            Setting.intSetting("ingest.opennlp.slowlog.source", 0, 0, Setting.Property.NodeScope);
+
+    public static final String THREAD_POOL_NAME = "opennlp";
+    // size and queue_size below this prefix are registered by the executor builder
+    static final String THREAD_POOL_PREFIX = "ingest.opennlp.thread_pool";
+    public static final Setting<Boolean> THREAD_POOL_ENABLED_SETTING =
+            Setting.boolSetting(THREAD_POOL_PREFIX + ".enabled", false, Setting.Property.NodeScope);
+    public static final Setting<Boolean> THREAD_POOL_CALLER_RUNS_SETTING =
+            Setting.boolSetting(THREAD_POOL_PREFIX + ".caller_runs", false, Setting.Property.NodeScope);
+
+    private OpenNlpService openNlpService;
 
     @Override
     public List<Setting<?>> getSettings() {
-        return Arrays.asList(MODEL_FILE_SETTINGS, SENTENCE_FILE_SETTINGS, MISC_FILE_SETTINGS);
+        return Arrays.asList(MODEL_FILE_SETTINGS, LANGUAGE_MODEL_SETTINGS, LANGUAGE_DEFAULT_SETTING, LANGUAGE_FALLBACK_SETTING,
+                DICTIONARY_FILE_SETTINGS, PATTERN_SETTINGS, SENTENCE_FILE_SETTINGS, MISC_FILE_SETTINGS, DECODER_POOL_SIZE_SETTING,
+                LAZY_LOAD_SETTING, MEMORY_BUDGET_SETTING, MEMORY_IDLE_TIMEOUT_SETTING, MEMORY_PINNED_SETTING, MEMORY_COMPACT_SETTING,
+                RELOAD_ENABLED_SETTING, CACHE_ENABLED_SETTING, CACHE_SIZE_SETTING, CACHE_EXPIRE_SETTING, SENTENCE_CACHE_ENABLED_SETTING,
+                SENTENCE_CACHE_SIZE_SETTING, PARALLEL_ENABLED_SETTING, PARALLEL_MIN_LENGTH_SETTING, PARALLEL_THREADS_SETTING,
+                WARMUP_DOCUMENTS_SETTING, WARMUP_MAX_TIME_SETTING, WARMUP_FILE_SETTING, SLOWLOG_THRESHOLD_WARN_SETTING,
+                SLOWLOG_THRESHOLD_INFO_SETTING, SLOWLOG_THRESHOLD_DEBUG_SETTING, SLOWLOG_SOURCE_SETTING, THREAD_POOL_ENABLED_SETTING,
+                THREAD_POOL_CALLER_RUNS_SETTING);
+    }
+
+    // -1 disables the level, just like the thresholds of the indexing slow log
+    private static Setting<TimeValue> slowLogThresholdSetting(String level) {
+        return Setting.timeSetting("ingest.opennlp.slowlog.threshold." + level, TimeValue.timeValueNanos(-1), TimeValue.timeValueMillis(-1),
+                Setting.Property.NodeScope);
+    }
+
+    @Override
+    public List<ExecutorBuilder<?>> getExecutorBuilders(Settings settings) {
+        // the ingest thread waits for the analysis, so the queue never holds more documents than there are bulk and index threads
+        return Collections.singletonList(new FixedExecutorBuilder(settings, THREAD_POOL_NAME,
+                Runtime.getRuntime().availableProcessors(), 200, THREAD_POOL_PREFIX));
+    }
+
+    @Override
+    public Collection<Object> createComponents(Client client, ClusterService clusterService, ThreadPool threadPool,
+                                               ResourceWatcherService resourceWatcherService, ScriptService scriptService,
+                                               NamedXContentRegistry xContentRegistry) {
+        // the ingest service asks for processors before components are created, so the service exists already
+        if (openNlpService != null && RELOAD_ENABLED_SETTING.get(openNlpService.getSettings())) {
+            try {
+                openNlpService.watchModels(resourceWatcherService, threadPool.generic());
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not watch ingest-opennlp model files", e);
+            }
+        }
+        if (openNlpService != null && openNlpService.getMemory().evictsIdle()) {
+            // check a few times per idle timeout, but not more often than every second
+            TimeValue idleTimeout = openNlpService.getMemory().idleTimeout();
+            TimeValue interval = TimeValue.timeValueMillis(Math.max(1000, Math.min(idleTimeout.millis() / 2, 60_000)));
+            threadPool.scheduleWithFixedDelay(openNlpService::evictIdleModels, interval, ThreadPool.Names.GENERIC);
+        }
+        if (openNlpService != null) {
+            // a removed pipeline is only known to be gone once its processors have been garbage collected
+            threadPool.scheduleWithFixedDelay(openNlpService::releaseUnusedModels, TimeValue.timeValueMinutes(1), ThreadPool.Names.GENERIC);
+        }
+        if (openNlpService != null && THREAD_POOL_ENABLED_SETTING.get(openNlpService.getSettings())) {
+            openNlpService.setExecutor(threadPool.executor(THREAD_POOL_NAME));
+        }
+        return Collections.emptyList();
+    }
+
+    @Override
+    public List<RestHandler> getRestHandlers(Settings settings, RestController restController, ClusterSettings clusterSettings,
+                                             IndexScopedSettings indexScopedSettings, SettingsFilter settingsFilter,
+                                             IndexNameExpressionResolver indexNameExpressionResolver,
+                                             Supplier<DiscoveryNodes> nodesInCluster) {
+        return Collections.singletonList(new RestOpenNlpStatsAction(settings, restController, () -> openNlpService, nodesInCluster));
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (openNlpService != null) {
+            openNlpService.close();
+        }
     }
 
     @Override
     public Map<String, Processor.Factory> getProcessors(Processor.Parameters parameters) {
         Path configDirectory = parameters.env.configFile().resolve("ingest-opennlp");
-        OpenNlpService openNlpService = new OpenNlpService(configDirectory, parameters.env.settings());
+        openNlpService = new OpenNlpService(configDirectory, parameters.env.settings());
         openNlpService.start();
 
         return Collections.singletonMap(OpenNlpProcessor.TYPE, new OpenNlpProcessor.Factory(openNlpService));
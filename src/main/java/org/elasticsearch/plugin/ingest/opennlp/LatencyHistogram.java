@@ -0,0 +1,104 @@
+/*
+ * Copyright [2016] [Alexander Reelsen]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.elasticsearch.plugin.ingest.opennlp;
+
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock free latency histogram with power of two buckets in microseconds. Recording only touches striped adders, so
+ * concurrent ingest threads do not contend. Percentiles are reported as the upper bound of their bucket.
+ */
+final class LatencyHistogram implements ToXContent {
+
+    // bucket i holds values below 2^i micros, the last one everything above ~9 minutes
+    private static final int BUCKETS = 30;
+
+    private final LongAdder[] buckets = new LongAdder[BUCKETS];
+    private final LongAdder count = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+    private final LongAccumulator maxNanos = new LongAccumulator(Long::max, 0);
+
+    LatencyHistogram() {
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    void record(long nanos) {
+        long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+        int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+        buckets[bucket].increment();
+        count.increment();
+        totalNanos.add(nanos);
+        maxNanos.accumulate(nanos);
+    }
+
+    long count() {
+        return count.sum();
+    }
+
+    long totalNanos() {
+        return totalNanos.sum();
+    }
+
+    /**
+     * @return the upper bound in microseconds of the bucket containing the given percentile
+     */
+    long percentileMicros(double percentile) {
+        long[] counts = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets[i].sum();
+            total += counts[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+
+        long rank = (long) Math.ceil(percentile / 100.0 * total);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return (1L << i) - 1;
+            }
+        }
+        return (1L << (BUCKETS - 1)) - 1;
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        long count = count();
+        builder.field("count", count);
+        builder.field("total_time_in_micros", TimeUnit.NANOSECONDS.toMicros(totalNanos()));
+        builder.field("avg_time_in_micros", count == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(totalNanos() / count));
+        builder.field("max_time_in_micros", TimeUnit.NANOSECONDS.toMicros(maxNanos.get()));
+        builder.startObject("percentiles_in_micros");
+        builder.field("50", percentileMicros(50));
+        builder.field("90", percentileMicros(90));
+        builder.field("99", percentileMicros(99));
+        builder.endObject();
+        return builder;
+    }
+}
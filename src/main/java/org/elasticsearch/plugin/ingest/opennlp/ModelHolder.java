@@ -0,0 +1,307 @@
+/*
+ * Copyright [2016] [Alexander Reelsen]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.elasticsearch.plugin.ingest.opennlp;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.message.ParameterizedMessage;
+import org.apache.logging.log4j.util.Supplier;
+import org.apache.lucene.util.Accountable;
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.common.CheckedFunction;
+import org.elasticsearch.common.StopWatch;
+import org.elasticsearch.common.unit.ByteSizeValue;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Holds a single model file together with the pool of decoders built on top of it.
+ *
+ * The model is either loaded up front via {@link #load(Executor)} or on first access via {@link #get()}. Only one load
+ * ever runs, concurrent callers all wait for the same result. A failed load is remembered, so a broken model file does
+ * not get read again for every document.
+ *
+ * Once loaded, the model can be replaced via {@link #reload()}. Callers keep the {@link Loaded} instance they got for the
+ * whole document, so in flight documents finish on the previous model while new ones pick up the new one. The same goes
+ * for {@link #evict()}, which drops the model until the next access loads it again.
+ */
+final class ModelHolder<M, D> {
+
+    private static final long LAST_USED_RESOLUTION = TimeUnit.SECONDS.toNanos(1);
+    // a rough factor from the uncompressed size of a model archive to the heap used by the deserialized model
+    static final int ARCHIVE_HEAP_FACTOR = 3;
+
+    private final String name;
+    private final Path path;
+    private final CheckedFunction<Path, M, IOException> loader;
+    private final Function<M, DecoderPool<D>> poolFactory;
+    private final Logger logger;
+
+    private final AtomicInteger loads = new AtomicInteger();
+    private final AtomicInteger evictions = new AtomicInteger();
+    private final Object reloadLock = new Object();
+    private volatile Loaded<M, D> loaded;
+    private CompletableFuture<Loaded<M, D>> loading;
+    private volatile long lastUsed = System.nanoTime();
+    private volatile long estimatedBytes;
+    private volatile Runnable loadListener;
+
+    ModelHolder(String name, Path path, CheckedFunction<Path, M, IOException> loader, Function<M, DecoderPool<D>> poolFactory,
+                Logger logger) {
+        this.name = name;
+        this.path = path;
+        this.loader = loader;
+        this.poolFactory = poolFactory;
+        this.logger = logger;
+    }
+
+    /**
+     * Starts loading the model on the given executor, unless a load is already running or done
+     */
+    CompletableFuture<Loaded<M, D>> load(Executor executor) {
+        CompletableFuture<Loaded<M, D>> future;
+        synchronized (this) {
+            if (loading != null) {
+                return loading;
+            }
+            future = loading = new CompletableFuture<>();
+        }
+        executor.execute(() -> doLoad(future));
+        return future;
+    }
+
+    /**
+     * Returns the loaded model, loading it on the calling thread if this is the first access
+     */
+    Loaded<M, D> get() {
+        long now = System.nanoTime();
+        // only write the shared field once in a while, every document of every thread passes here
+        if (now - lastUsed > LAST_USED_RESOLUTION) {
+            lastUsed = now;
+        }
+        Loaded<M, D> current = loaded;
+        if (current != null) {
+            return current;
+        }
+
+        CompletableFuture<Loaded<M, D>> future;
+        boolean owner = false;
+        synchronized (this) {
+            if (loading == null) {
+                loading = new CompletableFuture<>();
+                owner = true;
+            }
+            future = loading;
+        }
+        if (owner) {
+            doLoad(future);
+        }
+
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            throw new ElasticsearchException("Could not load model [{}] with path [{}]", e.getCause(), name, path);
+        }
+    }
+
+    private void doLoad(CompletableFuture<Loaded<M, D>> future) {
+        loads.incrementAndGet();
+        StopWatch sw = new StopWatch("model-loading").start(name);
+        try {
+            M model = loader.apply(path);
+            sw.stop();
+            Loaded<M, D> result = new Loaded<>(model, poolFactory.apply(model));
+            estimatedBytes = estimateBytes(model);
+            loaded = result;
+            logger.info("Loaded model [{}] from [{}] in [{}], about [{}] on the heap", name, path.getFileName(), sw.totalTime(),
+                    new ByteSizeValue(estimatedBytes));
+            future.complete(result);
+            notifyLoadListener();
+        } catch (IOException | RuntimeException e) {
+            logger.error((Supplier<?>) () -> new ParameterizedMessage("Could not load model [{}] with path [{}]", name, path), e);
+            future.completeExceptionally(e instanceof IOException ? new UncheckedIOException((IOException) e) : e);
+        }
+    }
+
+    /**
+     * Reads the model file again and swaps the new model in once it is fully loaded. If loading fails the previous
+     * model stays in place. A model that has never been loaded is not read, the next access picks up the new file.
+     *
+     * @return true if a new model has been swapped in
+     */
+    boolean reload() {
+        // the listener may evict other models, so it must not run while holding the lock
+        boolean swapped = swap();
+        if (swapped) {
+            notifyLoadListener();
+        }
+        return swapped;
+    }
+
+    private boolean swap() {
+        synchronized (reloadLock) {
+            if (loaded == null) {
+                synchronized (this) {
+                    // allow a model that failed to load to be retried with the new file
+                    if (loading != null && loading.isCompletedExceptionally()) {
+                        loading = null;
+                    }
+                }
+                return false;
+            }
+
+            loads.incrementAndGet();
+            StopWatch sw = new StopWatch("model-reloading").start(name);
+            try {
+                M model = loader.apply(path);
+                sw.stop();
+                estimatedBytes = estimateBytes(model);
+                loaded = new Loaded<>(model, poolFactory.apply(model));
+                logger.info("Reloaded model [{}] from [{}] in [{}]", name, path.getFileName(), sw.totalTime());
+                return true;
+            } catch (IOException | RuntimeException e) {
+                logger.warn((Supplier<?>) () -> new ParameterizedMessage(
+                        "Could not reload model [{}] with path [{}], keeping previous model", name, path), e);
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Drops the loaded model, the next access loads it again. Documents that are in flight keep their model.
+     *
+     * @return true if a model was loaded
+     */
+    boolean evict() {
+        synchronized (reloadLock) {
+            synchronized (this) {
+                if (loaded == null) {
+                    return false;
+                }
+                loaded = null;
+                loading = null;
+            }
+        }
+        evictions.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Sets the callback that runs whenever a model has been loaded or reloaded
+     */
+    void setLoadListener(Runnable loadListener) {
+        this.loadListener = loadListener;
+    }
+
+    private void notifyLoadListener() {
+        Runnable listener = this.loadListener;
+        if (listener != null) {
+            listener.run();
+        }
+    }
+
+    /**
+     * Estimates the heap used by the model. Models that know their size are asked, everything else is assumed to take a
+     * multiple of the uncompressed size of its archive.
+     */
+    private long estimateBytes(M model) {
+        // models that cannot tell their size report zero
+        long bytes = model instanceof Accountable ? ((Accountable) model).ramBytesUsed() : 0;
+        if (bytes > 0) {
+            return bytes;
+        }
+        long uncompressed = 0;
+        try (ZipInputStream zip = new ZipInputStream(Files.newInputStream(path))) {
+            while (zip.getNextEntry() != null) {
+                long skipped;
+                while ((skipped = zip.skip(Long.MAX_VALUE)) > 0) {
+                    uncompressed += skipped;
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            logger.debug("Could not estimate the size of model [{}]", name);
+        }
+        return uncompressed * ARCHIVE_HEAP_FACTOR;
+    }
+
+    String name() {
+        return name;
+    }
+
+    Path path() {
+        return path;
+    }
+
+    /**
+     * @return the currently loaded model, or null if it has not been loaded yet
+     */
+    Loaded<M, D> current() {
+        return loaded;
+    }
+
+    boolean isLoaded() {
+        return loaded != null;
+    }
+
+    int loads() {
+        return loads.get();
+    }
+
+    int evictions() {
+        return evictions.get();
+    }
+
+    /**
+     * @return the estimated heap usage of the model, which is kept after an eviction
+     */
+    long estimatedBytes() {
+        return estimatedBytes;
+    }
+
+    /**
+     * @return the {@link System#nanoTime()} of the last access, with a resolution of a second
+     */
+    long lastUsed() {
+        return lastUsed;
+    }
+
+    static final class Loaded<M, D> {
+
+        private static final AtomicLong GENERATIONS = new AtomicLong();
+
+        final M model;
+        final DecoderPool<D> pool;
+        // unique across all holders, identifies the model in cache keys
+        final long generation = GENERATIONS.incrementAndGet();
+
+        Loaded(M model, DecoderPool<D> pool) {
+            this.model = model;
+            this.pool = pool;
+        }
+    }
+}
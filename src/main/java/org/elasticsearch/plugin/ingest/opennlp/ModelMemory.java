@@ -0,0 +1,171 @@
+/*
+ * Copyright [2016] [Alexander Reelsen]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.elasticsearch.plugin.ingest.opennlp;
+
+import org.apache.logging.log4j.Logger;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the estimated heap usage of the loaded models within a budget. Whenever a model is loaded and the budget is
+ * exceeded, the least recently used models are evicted until it fits again. Models which have not been used for the
+ * idle timeout are evicted as well. An evicted model is loaded again on its next use.
+ *
+ * Pinned models are never evicted, for example the models nearly every document needs.
+ */
+final class ModelMemory {
+
+    private final long budgetBytes;
+    private final long idleNanos;
+    private final Set<String> pinned;
+    private final Logger logger;
+    private final List<ModelHolder<?, ?>> holders = new CopyOnWriteArrayList<>();
+
+    ModelMemory(long budgetBytes, TimeValue idleTimeout, Set<String> pinned, Logger logger) {
+        this.budgetBytes = budgetBytes;
+        this.idleNanos = idleTimeout.nanos();
+        this.pinned = pinned;
+        this.logger = logger;
+    }
+
+    static ModelMemory create(Settings settings, Logger logger) {
+        return new ModelMemory(IngestOpenNlpPlugin.MEMORY_BUDGET_SETTING.get(settings).getBytes(),
+                IngestOpenNlpPlugin.MEMORY_IDLE_TIMEOUT_SETTING.get(settings),
+                new HashSet<>(IngestOpenNlpPlugin.MEMORY_PINNED_SETTING.get(settings)), logger);
+    }
+
+    /**
+     * Puts the model under the control of the budget
+     */
+    void register(ModelHolder<?, ?> holder) {
+        holders.add(holder);
+        holder.setLoadListener(() -> onLoad(holder));
+    }
+
+    /**
+     * Takes the model out of the control of the budget, once it is not used anymore
+     */
+    void unregister(ModelHolder<?, ?> holder) {
+        holders.remove(holder);
+        holder.setLoadListener(null);
+    }
+
+    boolean isPinned(ModelHolder<?, ?> holder) {
+        return pinned.contains(holder.name());
+    }
+
+    boolean evictsIdle() {
+        return idleNanos > 0;
+    }
+
+    TimeValue idleTimeout() {
+        return TimeValue.timeValueNanos(idleNanos);
+    }
+
+    private synchronized void onLoad(ModelHolder<?, ?> loaded) {
+        evictIdle(loaded);
+        if (budgetBytes <= 0) {
+            return;
+        }
+        long resident = residentBytes();
+        while (resident > budgetBytes) {
+            ModelHolder<?, ?> victim = null;
+            for (ModelHolder<?, ?> holder : holders) {
+                // the model that was just loaded is about to be used, evicting it would only load it again right away
+                if (holder == loaded || holder.isLoaded() == false || isPinned(holder)) {
+                    continue;
+                }
+                if (victim == null || holder.lastUsed() < victim.lastUsed()) {
+                    victim = holder;
+                }
+            }
+            if (victim == null) {
+                logger.warn("Models use about [{}] of heap, which exceeds the budget of [{}], but there is no model left to evict",
+                        new ByteSizeValue(resident), new ByteSizeValue(budgetBytes));
+                return;
+            }
+            if (victim.evict()) {
+                logger.info("Evicted model [{}] of about [{}] to stay within the budget of [{}]", victim.name(),
+                        new ByteSizeValue(victim.estimatedBytes()), new ByteSizeValue(budgetBytes));
+            }
+            resident = residentBytes();
+        }
+    }
+
+    /**
+     * Evicts all models which have not been used within the idle timeout
+     */
+    synchronized void evictIdle() {
+        evictIdle(null);
+    }
+
+    private void evictIdle(ModelHolder<?, ?> except) {
+        if (idleNanos <= 0) {
+            return;
+        }
+        long now = System.nanoTime();
+        for (ModelHolder<?, ?> holder : holders) {
+            long idle = now - holder.lastUsed();
+            if (holder != except && holder.isLoaded() && idle > idleNanos && isPinned(holder) == false && holder.evict()) {
+                logger.info("Evicted model [{}] of about [{}], it has not been used for [{}]", holder.name(),
+                        new ByteSizeValue(holder.estimatedBytes()), TimeValue.timeValueMillis(TimeUnit.NANOSECONDS.toMillis(idle)));
+            }
+        }
+    }
+
+    long residentBytes() {
+        long bytes = 0;
+        for (ModelHolder<?, ?> holder : holders) {
+            if (holder.isLoaded()) {
+                bytes += holder.estimatedBytes();
+            }
+        }
+        return bytes;
+    }
+
+    long budgetBytes() {
+        return budgetBytes;
+    }
+
+    void toXContent(XContentBuilder builder, ToXContent.Params params) throws IOException {
+        builder.startObject("memory");
+        builder.byteSizeField("budget_in_bytes", "budget", budgetBytes);
+        builder.byteSizeField("resident_in_bytes", "resident", residentBytes());
+        long evictions = 0;
+        long evictedBytes = 0;
+        for (ModelHolder<?, ?> holder : holders) {
+            evictions += holder.evictions();
+            if (holder.isLoaded() == false) {
+                evictedBytes += holder.estimatedBytes();
+            }
+        }
+        builder.byteSizeField("evicted_in_bytes", "evicted", evictedBytes);
+        builder.field("evictions", evictions);
+        builder.endObject();
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright [2016] [Alexander Reelsen]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.elasticsearch.plugin.ingest.opennlp;
+
+import opennlp.tools.namefind.TokenNameFinder;
+import org.apache.logging.log4j.Logger;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * The name finder models of files named in the configuration of a processor instead of the node settings. Each file is
+ * loaded only once, all processors naming it share the same model.
+ *
+ * Processors are never closed, a removed or replaced pipeline is simply dropped. So the registry only keeps weak
+ * references to the processors using a file, and once the last of them has been garbage collected, the model is
+ * removed from the registry and its heap is freed.
+ */
+final class ModelRegistry {
+
+    private final Function<String, ModelHolder<?, TokenNameFinder>> holderFactory;
+    private final ModelMemory memory;
+    private final Logger logger;
+    private final Map<String, Entry> entries = new HashMap<>();
+    private final ReferenceQueue<Object> released = new ReferenceQueue<>();
+
+    ModelRegistry(Function<String, ModelHolder<?, TokenNameFinder>> holderFactory, ModelMemory memory, Logger logger) {
+        this.holderFactory = holderFactory;
+        this.memory = memory;
+        this.logger = logger;
+    }
+
+    /**
+     * Returns the model of the file, creating it on first use. The model is not loaded before its first document.
+     *
+     * @param file the file relative to the config directory
+     * @param user the token of the processor using the model, the model is kept as long as the token is reachable
+     */
+    synchronized ModelHolder<?, TokenNameFinder> acquire(String file, Object user) {
+        release();
+        Entry entry = entries.get(file);
+        if (entry == null) {
+            entry = new Entry(holderFactory.apply(file));
+            memory.register(entry.holder);
+            entries.put(file, entry);
+        }
+        entry.users.add(new User(user, file, released));
+        return entry.holder;
+    }
+
+    /**
+     * Drops the models whose processors have all been garbage collected
+     */
+    synchronized void release() {
+        for (Reference<?> reference = released.poll(); reference != null; reference = released.poll()) {
+            User user = (User) reference;
+            Entry entry = entries.get(user.file);
+            if (entry != null && entry.users.remove(user) && entry.users.isEmpty()) {
+                entries.remove(user.file);
+                memory.unregister(entry.holder);
+                entry.holder.evict();
+                logger.info("Released model [{}], it is not used by any processor anymore", entry.holder.name());
+            }
+        }
+    }
+
+    /**
+     * Releases the models of the user right away instead of once it has been garbage collected
+     */
+    synchronized void release(Object user) {
+        for (Entry entry : entries.values()) {
+            for (User reference : entry.users) {
+                if (reference.get() == user) {
+                    reference.enqueue();
+                }
+            }
+        }
+        release();
+    }
+
+    synchronized List<ModelHolder<?, TokenNameFinder>> holders() {
+        List<ModelHolder<?, TokenNameFinder>> holders = new ArrayList<>(entries.size());
+        for (Entry entry : entries.values()) {
+            holders.add(entry.holder);
+        }
+        return holders;
+    }
+
+    /**
+     * @return the number of processors that have acquired the model of the file and have not been released yet
+     */
+    synchronized int users(String file) {
+        Entry entry = entries.get(file);
+        return entry == null ? 0 : entry.users.size();
+    }
+
+    private static final class Entry {
+
+        final ModelHolder<?, TokenNameFinder> holder;
+        final Set<User> users = new HashSet<>();
+
+        Entry(ModelHolder<?, TokenNameFinder> holder) {
+            this.holder = holder;
+        }
+    }
+
+    private static final class User extends WeakReference<Object> {
+
+        final String file;
+
+        User(Object user, String file, ReferenceQueue<Object> queue) {
+            super(user, queue);
+            this.file = file;
+        }
+    }
+}
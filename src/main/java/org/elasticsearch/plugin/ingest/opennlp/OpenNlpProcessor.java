@@ -17,22 +17,33 @@
 
 package org.elasticsearch.plugin.ingest.opennlp;
 
+import opennlp.tools.namefind.TokenNameFinder;
 import org.apache.logging.log4j.Logger;
+import org.elasticsearch.ElasticsearchParseException;
+import org.elasticsearch.ElasticsearchTimeoutException;
 import org.elasticsearch.common.Strings;
 import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.unit.TimeValue;
 import org.elasticsearch.ingest.AbstractProcessor;
 import org.elasticsearch.ingest.IngestDocument;
 import org.elasticsearch.ingest.Processor;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
+import static org.elasticsearch.ingest.ConfigurationUtils.newConfigurationException;
+import static org.elasticsearch.ingest.ConfigurationUtils.readIntProperty;
 import static org.elasticsearch.ingest.ConfigurationUtils.readList;
 import static org.elasticsearch.ingest.ConfigurationUtils.readOptionalList;
+import static org.elasticsearch.ingest.ConfigurationUtils.readOptionalMap;
+import static org.elasticsearch.ingest.ConfigurationUtils.readOptionalStringProperty;
 import static org.elasticsearch.ingest.ConfigurationUtils.readStringProperty;
 
 public class OpenNlpProcessor extends AbstractProcessor {
@@ -40,86 +51,221 @@ public class OpenNlpProcessor extends AbstractProcessor {
     public static final String TYPE = "opennlp";
 
     private final OpenNlpService openNlpService;
-    private final List<String> sourceFields;
+    private final SourceField[] sourceFields;
     private final String targetField;
-    private final Set<String> fields;
+    private final OpenNlpService.Plan plan;
+    private final boolean sentiment;
+    private final int chunkSize;
+    private final int maxChars;
+    private final PreFilter preFilter;
+    private final TimeValue timeout;
+    private final boolean failOnTimeout;
+    // models named by this processor are kept as long as this token is reachable, which is as long as the processor is
+    private final Object modelOwner = new Object();
 
     OpenNlpProcessor(OpenNlpService openNlpService, String tag, List<String> sourceFields, String targetField, Set<String> fields) throws
             IOException {
+        this(openNlpService, tag, sourceFields, targetField, fields, Collections.emptyMap(), 0, 0, null, null, false);
+    }
+
+    /**
+     * @param modelFiles the model files of fields this processor does not take from the node settings, relative to the
+     *                   config directory
+     */
+    OpenNlpProcessor(OpenNlpService openNlpService, String tag, List<String> sourceFields, String targetField, Set<String> fields,
+                     Map<String, String> modelFiles, int chunkSize, int maxChars, PreFilter preFilter, TimeValue timeout,
+                     boolean failOnTimeout) throws IOException {
         super(tag);
         this.openNlpService = openNlpService;
-        this.sourceFields = sourceFields;
+        this.sourceFields = new SourceField[sourceFields.size()];
+        for (int i = 0; i < this.sourceFields.length; i++) {
+            this.sourceFields[i] = new SourceField(sourceFields.get(i));
+        }
         this.targetField = targetField;
-        this.fields = fields;
+        // everything that does not depend on the document is resolved once here instead of for every document
+        Map<String, ModelHolder<?, TokenNameFinder>> models = new HashMap<>();
+        for (Map.Entry<String, String> entry : modelFiles.entrySet()) {
+            models.put(entry.getKey(), openNlpService.acquireModel(entry.getValue(), modelOwner));
+        }
+        this.plan = openNlpService.plan(fields, models);
+        this.sentiment = openNlpService.miscGroupExists();
+        this.chunkSize = chunkSize;
+        this.maxChars = maxChars;
+        this.preFilter = preFilter;
+        this.timeout = timeout;
+        this.failOnTimeout = failOnTimeout;
+    }
+
+    private Map<String, Set<String>> analyze(String content, Deadline deadline) {
+        OpenNlpService.Plan plan = this.plan;
+        if (preFilter != null) {
+            Set<String> fields = preFilter.filter(content, plan.fields, openNlpService.getStats());
+            if (fields.isEmpty()) {
+                return Collections.emptyMap();
+            }
+            plan = plan.retain(fields);
+        }
+        return openNlpService.analyze(content, plan, chunkSize, maxChars, deadline);
     }
 
-    @SuppressWarnings("unchecked")
     /**
-     * Handles nested fields if needed. Requires the base field contain a list of key value pair objects, which can be
-     * converted to a Map<String, String>.
-     * Delimiter is '.'
+     * Analyzes the texts in one pass. Texts for which the prefilter drops only some of the fields are analyzed on their own.
      */
-    private void handleNestedContent(IngestDocument ingestDocument, String sourceField, Map<String, Set<String>> entities) {
-        String[] elems = sourceField.split("\\.");
-        if (elems.length > 0) {
-            String baseSourceField = elems[0];
-            String baseValueField = elems[1];
-            if (ingestDocument.hasField(baseSourceField)) {
-                Object value = ingestDocument.getFieldValue(baseSourceField, Object.class);
-                if (value instanceof List) {
-                    List<Object> objects = (List<Object>) value;
-                    for (Object obj : objects) {
-                        if (obj instanceof Map) {
-                            Map<String, String> valueMap = (Map<String, String>) obj;
-                            String content = valueMap.get(baseValueField);
-
-                            if (Strings.hasLength(content)) {
-                                mergeExisting(entities, ingestDocument, targetField);
-
-                                for (String field : fields) {
-                                    Set<String> data = openNlpService.find(content, field);
-                                    merge(entities, field, data);
-                                }
-                            }
-                        }
-                    }
+    private Map<String, Set<String>> analyze(List<String> contents, Deadline deadline) {
+        if (preFilter == null) {
+            return openNlpService.analyze(contents, plan, chunkSize, maxChars, deadline);
+        }
+        Map<String, Set<String>> entities = new HashMap<>();
+        List<String> accepted = new ArrayList<>(contents.size());
+        for (String content : contents) {
+            Set<String> fields = preFilter.filter(content, plan.fields, openNlpService.getStats());
+            if (fields.size() == plan.fields.size()) {
+                accepted.add(content);
+            } else if (fields.isEmpty() == false) {
+                mergeAll(entities, openNlpService.analyze(content, plan.retain(fields), chunkSize, maxChars, deadline));
+            }
+        }
+        mergeAll(entities, openNlpService.analyze(accepted, plan, chunkSize, maxChars, deadline));
+        return entities;
+    }
+
+    /**
+     * A source field with its path split up front. Paths with more than one element may lead through any number of
+     * objects and lists of objects, every string at the end of the path is analyzed.
+     */
+    private static final class SourceField {
+
+        final String name;
+        final String[] path;
+
+        SourceField(String name) {
+            this.name = name;
+            this.path = name.split("\\.");
+        }
+
+        boolean isNested() {
+            return path.length > 1;
+        }
+
+        void collect(IngestDocument ingestDocument, List<String> contents) {
+            if (ingestDocument.hasField(path[0])) {
+                collect(ingestDocument.getFieldValue(path[0], Object.class), 1, contents);
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private void collect(Object value, int depth, List<String> contents) {
+            if (value instanceof List) {
+                for (Object element : (List<Object>) value) {
+                    collect(element, depth, contents);
                 }
+            } else if (depth == path.length) {
+                if (value instanceof String && Strings.hasLength((String) value)) {
+                    contents.add((String) value);
+                }
+            } else if (value instanceof Map) {
+                collect(((Map<String, Object>) value).get(path[depth]), depth + 1, contents);
             }
         }
     }
 
+    /**
+     * Analyzes all source fields, the texts of nested fields are collected and analyzed together in a single pass. The
+     * entities are merged into the target field once at the end.
+     *
+     * If the timeout passes, the entities found so far are written and the document is flagged as truncated, or the
+     * processor fails if configured to do so. The time spent waiting for the opennlp thread pool counts as well.
+     */
     @Override
     public void execute(IngestDocument ingestDocument) throws Exception {
+        Deadline deadline = Deadline.after(timeout == null ? 0 : timeout.nanos());
+        SlowLog slowLog = openNlpService.getSlowLog();
+        if (slowLog == null) {
+            openNlpService.run(() -> execute(ingestDocument, deadline));
+            return;
+        }
+        SlowLog.Timings timings = new SlowLog.Timings();
+        long start = System.nanoTime();
+        try {
+            openNlpService.run(() -> execute(ingestDocument, deadline), timings);
+        } finally {
+            Map<String, Object> metadata = ingestDocument.getSourceAndMetadata();
+            slowLog.log(getTag(), String.valueOf(metadata.get(IngestDocument.MetaData.INDEX.getFieldName())),
+                    String.valueOf(metadata.get(IngestDocument.MetaData.ID.getFieldName())),
+                    slowLog.sourceChars() > 0 ? firstSource(ingestDocument) : null, deadline.expired(), timings, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * @return the first text of the source fields, for the slow log
+     */
+    private String firstSource(IngestDocument ingestDocument) {
+        List<String> contents = new ArrayList<>();
+        for (SourceField sourceField : sourceFields) {
+            sourceField.collect(ingestDocument, contents);
+            if (contents.isEmpty() == false) {
+                return contents.get(0);
+            }
+        }
+        return null;
+    }
+
+    private void execute(IngestDocument ingestDocument, Deadline deadline) {
         Map<String, Set<String>> entities = new HashMap<>();
         Map<String, String> sentimentMapping = new HashMap<>();
-        for (String sourceField : this.sourceFields) {
-            if (sourceField.contains(".")) {
-                this.handleNestedContent(ingestDocument, sourceField, entities);
+        List<String> nestedContents = new ArrayList<>();
+        for (SourceField sourceField : this.sourceFields) {
+            if (deadline.check()) {
+                break;
+            }
+            if (sourceField.isNested()) {
+                int from = nestedContents.size();
+                sourceField.collect(ingestDocument, nestedContents);
+                if (this.sentiment && nestedContents.size() > from) {
+                    List<String> contents = nestedContents.subList(from, nestedContents.size());
+                    String sentiment = openNlpService.getSentiment(contents, chunkSize, maxChars, deadline);
+                    if (sentiment != null) {
+                        sentimentMapping.put(sourceField.name, sentiment);
+                    }
+                }
             }
-            else if (ingestDocument.hasField(sourceField)) {
-                String content = ingestDocument.getFieldValue(sourceField, String.class);
+            else if (ingestDocument.hasField(sourceField.name)) {
+                String content = ingestDocument.getFieldValue(sourceField.name, String.class);
 
                 if (Strings.hasLength(content)) {
-                    mergeExisting(entities, ingestDocument, targetField);
+                    mergeAll(entities, analyze(content, deadline));
 
-                    for (String field : fields) {
-                        Set<String> data = openNlpService.find(content, field);
-                        merge(entities, field, data);
-                    }
-
-                    if (this.openNlpService.miscGroupExists()) {
-                        // Sentiment
-                        String sentiment = openNlpService.getSentiment(content);
-                        sentimentMapping.put(sourceField, sentiment);
+                    if (this.sentiment) {
+                        String sentiment = openNlpService.getSentiment(content, chunkSize, maxChars, deadline);
+                        if (sentiment != null) {
+                            sentimentMapping.put(sourceField.name, sentiment);
+                        }
                     }
                 }
             }
-            ingestDocument.setFieldValue(targetField, entities);
         }
+        if (nestedContents.isEmpty() == false) {
+            mergeAll(entities, analyze(nestedContents, deadline));
+        }
+        if (deadline.expired()) {
+            openNlpService.getStats().onTimeout();
+            if (failOnTimeout) {
+                throw new ElasticsearchTimeoutException("opennlp analysis did not finish within [{}]", timeout);
+            }
+        }
+        mergeExisting(entities, ingestDocument, targetField);
+        ingestDocument.setFieldValue(targetField, entities);
 
-        if (this.openNlpService.miscGroupExists()) {
+        if (this.sentiment) {
             ingestDocument.setFieldValue("opennlp.sentiment", sentimentMapping);
         }
+        if (deadline.expired()) {
+            ingestDocument.setFieldValue("opennlp.truncated", true);
+        }
+    }
+
+    Object modelOwner() {
+        return modelOwner;
     }
 
     @Override
@@ -148,18 +294,93 @@ public class OpenNlpProcessor extends AbstractProcessor {
             logger.info("documentFields: {}", documentFields);
             String targetField = readStringProperty(TYPE, processorTag, config, "target_field", "entities");
             List<String> fields = readOptionalList(TYPE, processorTag, config, "fields");
+            Map<String, String> modelFiles = readModelFiles(processorTag, config);
             final Set<String> foundFields = fields == null || fields.size() == 0 ? openNlpService.getModels() : new HashSet<>(fields);
-            return new OpenNlpProcessor(openNlpService, processorTag, documentFields, targetField, foundFields);
+            foundFields.addAll(modelFiles.keySet());
+            Set<String> models = openNlpService.getModels();
+            models.addAll(modelFiles.keySet());
+            for (String field : foundFields) {
+                if (models.contains(field) == false) {
+                    throw newConfigurationException(TYPE, processorTag, "fields",
+                            "unknown model [" + field + "], possible values " + models);
+                }
+            }
+            int chunkSize = readNonNegativeIntProperty(processorTag, config, "chunk_size");
+            int maxChars = readNonNegativeIntProperty(processorTag, config, "max_chars");
+            PreFilter preFilter = PreFilter.parse(TYPE, processorTag, config);
+            TimeValue timeout = readTimeout(processorTag, config);
+            String onTimeout = readStringProperty(TYPE, processorTag, config, "on_timeout", "partial");
+            if ("partial".equals(onTimeout) == false && "fail".equals(onTimeout) == false) {
+                throw newConfigurationException(TYPE, processorTag, "on_timeout", "must be one of [partial, fail]");
+            }
+            return new OpenNlpProcessor(openNlpService, processorTag, documentFields, targetField, foundFields, modelFiles, chunkSize,
+                    maxChars, preFilter, timeout, "fail".equals(onTimeout));
+        }
+
+        private Map<String, String> readModelFiles(String processorTag, Map<String, Object> config) {
+            Map<String, Object> models = readOptionalMap(TYPE, processorTag, config, "models");
+            if (models == null) {
+                return Collections.emptyMap();
+            }
+            Map<String, String> modelFiles = new HashMap<>();
+            for (Map.Entry<String, Object> entry : models.entrySet()) {
+                if (entry.getValue() instanceof String == false) {
+                    throw newConfigurationException(TYPE, processorTag, "models",
+                            "file of model [" + entry.getKey() + "] must be a string");
+                }
+                String file = (String) entry.getValue();
+                if (openNlpService.isModelFile(file) == false) {
+                    throw newConfigurationException(TYPE, processorTag, "models",
+                            "file [" + file + "] of model [" + entry.getKey() + "] does not exist in the config directory");
+                }
+                modelFiles.put(entry.getKey(), file);
+            }
+            return modelFiles;
+        }
+
+        private static TimeValue readTimeout(String processorTag, Map<String, Object> config) {
+            String value = readOptionalStringProperty(TYPE, processorTag, config, "timeout");
+            if (value == null) {
+                return null;
+            }
+            TimeValue timeout;
+            try {
+                timeout = TimeValue.parseTimeValue(value, null, "timeout");
+            } catch (ElasticsearchParseException e) {
+                throw newConfigurationException(TYPE, processorTag, "timeout", e.getMessage());
+            }
+            if (timeout.nanos() <= 0) {
+                throw newConfigurationException(TYPE, processorTag, "timeout", "must be positive");
+            }
+            return timeout;
+        }
+
+        private static int readNonNegativeIntProperty(String processorTag, Map<String, Object> config, String propertyName) {
+            int value = readIntProperty(TYPE, processorTag, config, propertyName, 0);
+            if (value < 0) {
+                throw newConfigurationException(TYPE, processorTag, propertyName, "must not be negative");
+            }
+            return value;
         }
     }
 
+    @SuppressWarnings("unchecked")
     private static void mergeExisting(Map<String, Set<String>> entities, IngestDocument ingestDocument, String targetField) {
         if (ingestDocument.hasField(targetField)) {
-            @SuppressWarnings("unchecked")
-            Map<String, Set<String>> existing = ingestDocument.getFieldValue(targetField, Map.class);
-            entities.putAll(existing);
-        } else {
-            ingestDocument.setFieldValue(targetField, entities);
+            Map<String, Object> existing = ingestDocument.getFieldValue(targetField, Map.class);
+            for (Map.Entry<String, Object> entry : existing.entrySet()) {
+                if (entry.getValue() instanceof Collection) {
+                    merge(entities, entry.getKey(), new HashSet<>((Collection<String>) entry.getValue()));
+                } else if (entry.getValue() != null) {
+                    merge(entities, entry.getKey(), new HashSet<>(Collections.singleton(entry.getValue().toString())));
+                }
+            }
+        }
+    }
+
+    private static void mergeAll(Map<String, Set<String>> map, Map<String, Set<String>> entities) {
+        for (Map.Entry<String, Set<String>> entry : entities.entrySet()) {
+            merge(map, entry.getKey(), entry.getValue());
         }
     }
 
@@ -17,153 +17,1148 @@
 
 package org.elasticsearch.plugin.ingest.opennlp;
 
+import opennlp.tools.langdetect.LanguageDetectorME;
+import opennlp.tools.langdetect.LanguageDetectorModel;
 import opennlp.tools.namefind.NameFinderME;
+import opennlp.tools.namefind.TokenNameFinder;
 import opennlp.tools.namefind.TokenNameFinderModel;
 import opennlp.tools.sentdetect.SentenceDetectorME;
 import opennlp.tools.sentdetect.SentenceModel;
 import opennlp.tools.sentiment.SentimentME;
 import opennlp.tools.sentiment.SentimentModel;
-import opennlp.tools.tokenize.SimpleTokenizer;
 import opennlp.tools.util.Span;
 import org.apache.logging.log4j.Logger;
-import org.apache.logging.log4j.message.ParameterizedMessage;
-import org.apache.logging.log4j.util.Supplier;
 import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.common.CheckedRunnable;
 import org.elasticsearch.common.StopWatch;
 import org.elasticsearch.common.logging.Loggers;
 import org.elasticsearch.common.settings.Setting;
 import org.elasticsearch.common.settings.Settings;
-import org.elasticsearch.common.util.set.Sets;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.watcher.FileChangesListener;
+import org.elasticsearch.watcher.FileWatcher;
+import org.elasticsearch.watcher.ResourceWatcherService;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
- * OpenNLP name finders are not thread safe, so we load them via a thread local hack
+ * OpenNLP name finders are not thread safe, so every model has a pool of decoders that callers borrow from
  */
 public class OpenNlpService {
 
+    private static final int LANGUAGE_SAMPLE_LENGTH = 1000;
+
     private final Path configDirectory;
     private final Logger logger;
     private Settings settings;
 
-    private ThreadLocal<TokenNameFinderModel> nerThreadLocal = new ThreadLocal<>();
-    private ThreadLocal<SentimentModel> sentimentThreadLocal = new ThreadLocal<>();
-    private ThreadLocal<SentenceModel> sentenceThreadLocal = new ThreadLocal<>();
+    private final int decoderPoolSize;
+    private final boolean lazyLoad;
 
-    private Map<String, TokenNameFinderModel> nameFinderModels = new ConcurrentHashMap<>();
-    private SentimentModel sentimentModel;
-    private SentenceModel sentenceModel;
+    private Map<String, ModelHolder<?, TokenNameFinder>> nameFinderModels = new ConcurrentHashMap<>();
+    private PatternEntityFinder patternFinder;
+    private ModelHolder<SentimentModel, SentimentME> sentimentModel;
+    private ModelHolder<LanguageDetectorModel, LanguageDetectorME> languageModel;
+    private Set<String> statisticalModels = Collections.emptySet();
+    private final Map<String, Map<String, ModelHolder<?, TokenNameFinder>>> languageModels = new HashMap<>();
+    private final String defaultLanguage;
+    private final boolean languageFallback;
+    private ModelHolder<SentenceModel, SentenceDetectorME> sentenceModel;
+    private final ResultCache resultCache;
+    private final SentenceCache sentenceCache;
+    // replaced once the warm up is done, so its documents do not show up
+    private volatile OpenNlpStats stats = new OpenNlpStats();
+    private final ModelMemory memory;
+    private final ModelRegistry registry;
+    private final ForkJoinPool parallelPool;
+    private final int parallelMinLength;
+    private final boolean callerRuns;
+    private final boolean compactModels;
+    private final WarmUp warmUp;
+    private final SlowLog slowLog;
+    // the timings of the document the current thread analyzes, only set while the slow log is enabled
+    private final ThreadLocal<SlowLog.Timings> timings = new ThreadLocal<>();
+    private volatile Executor executor;
 
     public OpenNlpService(Path configDirectory, Settings settings) {
         this.logger = Loggers.getLogger(getClass(), settings);
         this.configDirectory = configDirectory;
         this.settings = settings;
+        this.decoderPoolSize = IngestOpenNlpPlugin.DECODER_POOL_SIZE_SETTING.get(settings);
+        this.lazyLoad = IngestOpenNlpPlugin.LAZY_LOAD_SETTING.get(settings);
+        this.defaultLanguage = IngestOpenNlpPlugin.LANGUAGE_DEFAULT_SETTING.get(settings);
+        this.languageFallback = IngestOpenNlpPlugin.LANGUAGE_FALLBACK_SETTING.get(settings);
+        this.resultCache = ResultCache.create(settings);
+        this.sentenceCache = SentenceCache.create(settings);
+        this.memory = ModelMemory.create(settings, logger);
+        this.registry = new ModelRegistry(file -> nameFinderHolder(file, file), memory, logger);
+        this.parallelMinLength = IngestOpenNlpPlugin.PARALLEL_MIN_LENGTH_SETTING.get(settings);
+        this.callerRuns = IngestOpenNlpPlugin.THREAD_POOL_CALLER_RUNS_SETTING.get(settings);
+        this.compactModels = IngestOpenNlpPlugin.MEMORY_COMPACT_SETTING.get(settings);
+        this.warmUp = WarmUp.create(settings);
+        this.slowLog = SlowLog.create(settings);
+        if (IngestOpenNlpPlugin.PARALLEL_ENABLED_SETTING.get(settings)) {
+            this.parallelPool = new ForkJoinPool(IngestOpenNlpPlugin.PARALLEL_THREADS_SETTING.get(settings), pool -> {
+                ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                thread.setName("opennlp_parallel[" + thread.getPoolIndex() + "]");
+                return thread;
+            }, null, false);
+        } else {
+            this.parallelPool = null;
+        }
     }
 
     public Set<String> getModels() {
-        return IngestOpenNlpPlugin.MODEL_FILE_SETTINGS.get(settings).getAsMap().keySet();
+        Set<String> models = new HashSet<>(IngestOpenNlpPlugin.MODEL_FILE_SETTINGS.get(settings).getAsMap().keySet());
+        models.addAll(IngestOpenNlpPlugin.DICTIONARY_FILE_SETTINGS.get(settings).getAsMap().keySet());
+        models.addAll(IngestOpenNlpPlugin.PATTERN_SETTINGS.get(settings).getAsMap().keySet());
+        return models;
     }
 
     protected OpenNlpService start() {
-        StopWatch sw = new StopWatch("models-loading");
         Map<String, String> settingsMap = IngestOpenNlpPlugin.MODEL_FILE_SETTINGS.get(settings).getAsMap();
         for (Map.Entry<String, String> entry : settingsMap.entrySet()) {
-            String name = entry.getKey();
-            sw.start(name);
-            Path path = configDirectory.resolve(entry.getValue());
-            try (InputStream is = Files.newInputStream(path)) {
-                nameFinderModels.put(name, new TokenNameFinderModel(is));
-            } catch (IOException e) {
-                logger.error((Supplier<?>) () -> new ParameterizedMessage("Could not load model [{}] with path [{}]", name, path), e);
+            nameFinderModels.put(entry.getKey(), nameFinderHolder(entry.getKey(), entry.getValue()));
+        }
+        this.statisticalModels = new HashSet<>(settingsMap.keySet());
+
+        // the models of other languages are only ever loaded when a document in that language shows up
+        for (Map.Entry<String, Settings> language : IngestOpenNlpPlugin.LANGUAGE_MODEL_SETTINGS.get(settings).getAsGroups().entrySet()) {
+            if ("file".equals(language.getKey())) {
+                // ingest.opennlp.model.file.* are the default models
+                continue;
+            }
+            Map<String, ModelHolder<?, TokenNameFinder>> models = new HashMap<>();
+            for (Map.Entry<String, String> entry : language.getValue().getByPrefix("file.").getAsMap().entrySet()) {
+                models.put(entry.getKey(), nameFinderHolder(language.getKey() + "." + entry.getKey(), entry.getValue()));
             }
-            sw.stop();
+            languageModels.put(language.getKey(), models);
+        }
+
+        String languageModelName = IngestOpenNlpPlugin.MISC_FILE_SETTINGS.get(settings).get("language");
+        if (languageModelName != null) {
+            this.languageModel = new ModelHolder<>("language", configDirectory.resolve(languageModelName), path -> {
+                try (InputStream is = Files.newInputStream(path)) {
+                    return new LanguageDetectorModel(is);
+                }
+            }, model -> new DecoderPool<>(decoderPoolSize, () -> new LanguageDetectorME(model)), logger);
+        } else if (languageModels.isEmpty() == false) {
+            logger.warn("Models for languages {} are configured, but no language detection model", languageModels.keySet());
         }
 
-        if (settingsMap.keySet().size() == 0) {
+        // dictionaries are immutable and thread safe, so every caller gets the same instance from the pool
+        Map<String, String> dictionaryMap = IngestOpenNlpPlugin.DICTIONARY_FILE_SETTINGS.get(settings).getAsMap();
+        for (Map.Entry<String, String> entry : dictionaryMap.entrySet()) {
+            if (settingsMap.containsKey(entry.getKey())) {
+                throw new ElasticsearchException("Dictionary [{}] has the same name as a model", entry.getKey());
+            }
+            nameFinderModels.put(entry.getKey(), new ModelHolder<GazetteerNameFinder, TokenNameFinder>(entry.getKey(),
+                    configDirectory.resolve(entry.getValue()), path -> GazetteerNameFinder.load(entry.getKey(), path),
+                    dictionary -> new DecoderPool<>(1, () -> dictionary), logger));
+        }
+
+        this.patternFinder = PatternEntityFinder.create(IngestOpenNlpPlugin.PATTERN_SETTINGS.get(settings));
+        if (patternFinder != null) {
+            for (String name : patternFinder.names()) {
+                if (nameFinderModels.containsKey(name)) {
+                    throw new ElasticsearchException("Pattern [{}] has the same name as a model", name);
+                }
+            }
+            logger.info("Compiled patterns {}", patternFinder.names());
+        }
+
+        if (nameFinderModels.isEmpty() && patternFinder == null) {
             logger.error("Did not load any models for ingest-opennlp plugin, none configured");
-        } else {
-            logger.info("Read models in [{}] for {}", sw.totalTime(), settingsMap.keySet());
         }
 
         if (this.miscGroupExists()) {
-            this.sentimentModel = loadSentimentModel();
+            String modelName = IngestOpenNlpPlugin.MISC_FILE_SETTINGS.get(settings).get("sentiment");
+            this.sentimentModel = new ModelHolder<>("sentiment", configDirectory.resolve(modelName),
+                    path -> new SentimentModel(path.toUri().toURL()),
+                    model -> new DecoderPool<>(decoderPoolSize, () -> new SentimentME(model)), logger);
         }
 
         if (this.tokenizerGroupExists()) {
-            this.sentenceModel = loadSentenceModel();
+            String modelName = IngestOpenNlpPlugin.SENTENCE_FILE_SETTINGS.get(settings).get("sentences");
+            this.sentenceModel = new ModelHolder<>("sentences", configDirectory.resolve(modelName), path -> {
+                try (InputStream is = Files.newInputStream(path)) {
+                    return new SentenceModel(is);
+                }
+            }, model -> new DecoderPool<>(decoderPoolSize, () -> new SentenceDetectorME(model)), logger);
+        }
+
+        for (ModelHolder<?, ?> holder : holders()) {
+            memory.register(holder);
+        }
+
+        if (lazyLoad) {
+            logger.info("Lazy loading enabled, models {} are loaded on first use", nameFinderModels.keySet());
+        } else {
+            loadAll();
+            logger.info("Models use about [{}] of heap, budget is [{}]", new ByteSizeValue(memory.residentBytes()),
+                    memory.budgetBytes() > 0 ? new ByteSizeValue(memory.budgetBytes()) : "unlimited");
+            if (warmUp != null) {
+                warmUp();
+            }
         }
 
         return this;
     }
 
-    private String[] getNames(String content, NameFinderME nameFinderME) {
-        String[] tokens = SimpleTokenizer.INSTANCE.tokenize(content);
-        Span spans[] = nameFinderME.find(tokens);
-        String[] names = Span.spansToStrings(spans, tokens);
+    private ModelHolder<TokenNameFinderModel, TokenNameFinder> nameFinderHolder(String name, String file) {
+        return new ModelHolder<>(name, configDirectory.resolve(file), path -> {
+            try (InputStream is = Files.newInputStream(path)) {
+                if (compactModels == false) {
+                    return new TokenNameFinderModel(is);
+                }
+                CompactTokenNameFinderModel model = new CompactTokenNameFinderModel(is);
+                if (model.isCompact() == false) {
+                    logger.warn("Model [{}] cannot be converted into a compact model, using it as it is", name);
+                }
+                return model;
+            }
+        }, model -> new DecoderPool<>(decoderPoolSize, () -> new NameFinderME(model), TokenNameFinder::clearAdaptiveData), logger);
+    }
+
+    /**
+     * Loads all configured models in parallel and waits until they are done. Failures are logged per model.
+     */
+    private void loadAll() {
+        List<ModelHolder<?, ?>> holders = defaultHolders();
+        if (holders.isEmpty()) {
+            return;
+        }
 
-        return names;
+        StopWatch sw = new StopWatch("models-loading").start("all");
+        int threads = Math.min(holders.size(), Runtime.getRuntime().availableProcessors());
+        ExecutorService executor = Executors.newFixedThreadPool(threads, EsExecutors.daemonThreadFactory(settings, "opennlp_loader"));
+        try {
+            List<CompletableFuture<?>> futures = new ArrayList<>(holders.size());
+            for (ModelHolder<?, ?> holder : holders) {
+                futures.add(holder.load(executor));
+            }
+            for (CompletableFuture<?> future : futures) {
+                // errors are logged by the holder, a broken model must not prevent the others from being used
+                future.handle((result, e) -> null).join();
+            }
+        } finally {
+            executor.shutdown();
+        }
+        sw.stop();
+        logger.info("Read models in [{}] with [{}] threads for {}", sw.totalTime(), threads, nameFinderModels.keySet());
     }
 
-    public Set<String> find(String content, String field) {
+    /**
+     * Runs the warm up corpus through all models. A failing warm up is logged, the models are usable anyway.
+     */
+    private void warmUp() {
+        StopWatch sw = new StopWatch("models-warmup").start("all");
+        int threads = Math.min(decoderPoolSize, Runtime.getRuntime().availableProcessors());
+        int documents;
         try {
-            if (!nameFinderModels.containsKey(field)) {
-                throw new ElasticsearchException("Could not find field [{}], possible values {}", field, nameFinderModels.keySet());
+            documents = warmUp.run(this, warmUp.corpus(configDirectory), threads, settings);
+        } catch (Exception e) {
+            logger.warn("Warm up failed, models are used without it", e);
+            return;
+        } finally {
+            // warm up documents are neither counted nor cached
+            stats = new OpenNlpStats();
+            if (resultCache != null) {
+                resultCache.invalidateAll();
+            }
+            if (sentenceCache != null) {
+                sentenceCache.clear();
             }
-            TokenNameFinderModel finderModel = nameFinderModels.get(field);
-            if (nerThreadLocal.get() == null || !nerThreadLocal.get().equals(finderModel)) {
-                nerThreadLocal.set(finderModel);
+        }
+        sw.stop();
+        logger.info("Warmed up models in [{}] with [{}] documents on [{}] threads", sw.totalTime(), documents, threads);
+    }
+
+    /**
+     * Watches the config directory and reloads models in the background whenever their file is changed or replaced.
+     * Reloading never blocks ingestion, documents keep using the previous model until the new one is fully loaded.
+     */
+    public void watchModels(ResourceWatcherService resourceWatcherService, Executor executor) throws IOException {
+        resourceWatcherService.add(modelWatcher(executor), ResourceWatcherService.Frequency.MEDIUM);
+    }
+
+    FileWatcher modelWatcher(Executor executor) {
+        FileWatcher watcher = new FileWatcher(configDirectory);
+        watcher.addListener(new FileChangesListener() {
+            @Override
+            public void onFileCreated(Path file) {
+                onFileChanged(file);
             }
-            NameFinderME nameFinderME = new NameFinderME(finderModel);
 
-            Set<String> set = new HashSet<>();
+            @Override
+            public void onFileChanged(Path file) {
+                for (ModelHolder<?, ?> holder : holdersForFile(file)) {
+                    logger.info("Model file [{}] changed, reloading model [{}]", file.getFileName(), holder.name());
+                    executor.execute(() -> {
+                        // cached results of the previous generation can never be hit again, free them right away
+                        if (holder.reload()) {
+                            if (resultCache != null) {
+                                resultCache.invalidateAll();
+                            }
+                            if (sentenceCache != null) {
+                                sentenceCache.clear();
+                            }
+                        }
+                    });
+                }
+            }
 
-            if (this.sentenceModel == null) {
-                set.addAll(Sets.newHashSet(this.getNames(content, nameFinderME)));
+            @Override
+            public void onFileDeleted(Path file) {
+                for (ModelHolder<?, ?> holder : holdersForFile(file)) {
+                    logger.warn("Model file [{}] has been deleted, keeping loaded model [{}]", file.getFileName(), holder.name());
+                }
+            }
+        });
+        return watcher;
+    }
+
+    private List<ModelHolder<?, ?>> holdersForFile(Path file) {
+        Path normalized = file.toAbsolutePath().normalize();
+        List<ModelHolder<?, ?>> holders = new ArrayList<>();
+        for (ModelHolder<?, ?> holder : holders()) {
+            if (holder.path().toAbsolutePath().normalize().equals(normalized)) {
+                holders.add(holder);
+            }
+        }
+        return holders;
+    }
+
+    List<ModelHolder<?, ?>> holders() {
+        List<ModelHolder<?, ?>> holders = defaultHolders();
+        for (Map<String, ModelHolder<?, TokenNameFinder>> models : languageModels.values()) {
+            holders.addAll(models.values());
+        }
+        holders.addAll(registry.holders());
+        return holders;
+    }
+
+    /**
+     * @return true if the file exists within the config directory, so a processor can use it as a model
+     */
+    boolean isModelFile(String file) {
+        Path directory = configDirectory.toAbsolutePath().normalize();
+        Path path = directory.resolve(file).normalize();
+        return path.startsWith(directory) && Files.isRegularFile(path);
+    }
+
+    /**
+     * Returns the name finder model of a file named by a processor. A file that is configured on the node as well, for
+     * any language, is only loaded once, any other file is shared by all processors naming it and freed once none of
+     * them is left.
+     *
+     * @param file the file relative to the config directory, see {@link #isModelFile(String)}
+     * @param user a token only referenced by the processor using the model, the model is freed once it is unreachable
+     */
+    ModelHolder<?, TokenNameFinder> acquireModel(String file, Object user) {
+        Path directory = configDirectory.toAbsolutePath().normalize();
+        Path path = directory.resolve(file).normalize();
+        for (String name : statisticalModels) {
+            ModelHolder<?, TokenNameFinder> holder = nameFinderModels.get(name);
+            if (holder.path().toAbsolutePath().normalize().equals(path)) {
+                return holder;
+            }
+        }
+        for (Map<String, ModelHolder<?, TokenNameFinder>> models : languageModels.values()) {
+            for (ModelHolder<?, TokenNameFinder> holder : models.values()) {
+                if (holder.path().toAbsolutePath().normalize().equals(path)) {
+                    return holder;
+                }
+            }
+        }
+        return registry.acquire(directory.relativize(path).toString(), user);
+    }
+
+    /**
+     * Frees the models named by processors which have all been garbage collected
+     */
+    void releaseUnusedModels() {
+        registry.release();
+    }
+
+    ModelRegistry getRegistry() {
+        return registry;
+    }
+
+    /**
+     * @return all holders except the ones of other languages, which are never loaded up front
+     */
+    private List<ModelHolder<?, ?>> defaultHolders() {
+        List<ModelHolder<?, ?>> holders = new ArrayList<>(nameFinderModels.values());
+        if (sentimentModel != null) {
+            holders.add(sentimentModel);
+        }
+        if (sentenceModel != null) {
+            holders.add(sentenceModel);
+        }
+        if (languageModel != null) {
+            holders.add(languageModel);
+        }
+        return holders;
+    }
+
+    public Set<String> find(String content, String field) {
+        return analyze(content, Collections.singleton(field)).get(field);
+    }
+
+    /**
+     * Runs all the given models over the content. Sentence detection and tokenization only happen once per call,
+     * the resulting token arrays are shared across all name finders.
+     */
+    public Map<String, Set<String>> analyze(String content, Set<String> fields) {
+        return analyze(content, fields, 0, 0);
+    }
+
+    /**
+     * Like {@link #analyze(String, Set)}, but only looks at the first {@code maxChars} characters if that is positive, and
+     * works through the content in sentence aligned windows of at most {@code chunkSize} characters if that is positive.
+     * Sentences and tokens then only exist for one window at a time, so memory is bounded by the chunk size instead of
+     * the document size.
+     */
+    public Map<String, Set<String>> analyze(String content, Set<String> fields, int chunkSize, int maxChars) {
+        return analyze(content, plan(fields), chunkSize, maxChars);
+    }
+
+    /**
+     * Resolves the fields to their models once, so that analyzing a document does not have to look up anything by name
+     *
+     * @throws ElasticsearchException if there is no model, dictionary or pattern for one of the fields
+     */
+    Plan plan(Set<String> fields) {
+        return plan(fields, Collections.emptyMap());
+    }
+
+    /**
+     * Like {@link #plan(Set)}, but the given models are used for their fields instead of the ones configured on the node
+     */
+    Plan plan(Set<String> fields, Map<String, ModelHolder<?, TokenNameFinder>> models) {
+        List<String> names = new ArrayList<>(fields.size());
+        List<ModelHolder<?, TokenNameFinder>> holders = new ArrayList<>(fields.size());
+        Set<String> patterns = new HashSet<>();
+        for (String field : fields) {
+            if (models.containsKey(field)) {
+                names.add(field);
+                holders.add(models.get(field));
+                continue;
+            }
+            if (patternFinder != null && patternFinder.contains(field)) {
+                patterns.add(field);
+                continue;
+            }
+            ModelHolder<?, TokenNameFinder> holder = nameFinderModels.get(field);
+            if (holder == null) {
+                throw new ElasticsearchException("Could not find field [{}], possible values {}", field, getModels());
+            }
+            names.add(field);
+            holders.add(holder);
+        }
+        boolean[] routed = new boolean[names.size()];
+        for (int i = 0; i < routed.length; i++) {
+            // dictionaries and patterns do not depend on the language, only the statistical models of the node are routed
+            routed[i] = languageModel != null && statisticalModels.contains(names.get(i)) && models.containsKey(names.get(i)) == false;
+        }
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        ModelHolder<?, TokenNameFinder>[] holderArray = holders.toArray(new ModelHolder[holders.size()]);
+        return new Plan(fields, names.toArray(new String[names.size()]), holderArray, routed, patterns);
+    }
+
+    /**
+     * The models for a fixed set of fields. Holders stay the same across reloads, so a plan is valid for the lifetime
+     * of the service.
+     */
+    static final class Plan {
+
+        final Set<String> fields;
+        final String[] names;
+        final ModelHolder<?, TokenNameFinder>[] holders;
+        final boolean[] routed;
+        final Set<String> patterns;
+
+        private Plan(Set<String> fields, String[] names, ModelHolder<?, TokenNameFinder>[] holders, boolean[] routed,
+                     Set<String> patterns) {
+            this.fields = Collections.unmodifiableSet(new HashSet<>(fields));
+            this.names = names;
+            this.holders = holders;
+            this.routed = routed;
+            this.patterns = Collections.unmodifiableSet(patterns);
+        }
+
+        /**
+         * @return a plan with only the given fields, which must be a subset of the fields of this plan
+         */
+        Plan retain(Set<String> retained) {
+            if (retained.size() == fields.size()) {
+                return this;
+            }
+            int size = 0;
+            for (String name : names) {
+                if (retained.contains(name)) {
+                    size++;
+                }
+            }
+            String[] retainedNames = new String[size];
+            @SuppressWarnings({"unchecked", "rawtypes"})
+            ModelHolder<?, TokenNameFinder>[] retainedHolders = new ModelHolder[size];
+            boolean[] retainedRouted = new boolean[size];
+            int j = 0;
+            for (int i = 0; i < names.length; i++) {
+                if (retained.contains(names[i])) {
+                    retainedNames[j] = names[i];
+                    retainedHolders[j] = holders[i];
+                    retainedRouted[j] = routed[i];
+                    j++;
+                }
+            }
+            Set<String> retainedPatterns = new HashSet<>(patterns);
+            retainedPatterns.retainAll(retained);
+            return new Plan(retained, retainedNames, retainedHolders, retainedRouted, retainedPatterns);
+        }
+    }
+
+    /**
+     * Runs the resolved models of the plan over the content, see {@link #analyze(String, Set, int, int)}
+     */
+    Map<String, Set<String>> analyze(String content, Plan plan, int chunkSize, int maxChars) {
+        return analyze(content, plan, chunkSize, maxChars, Deadline.NONE);
+    }
+
+    /**
+     * Like {@link #analyze(String, Plan, int, int)}, but stops between chunks, sentences and models once the deadline
+     * has passed. The entities found so far are returned, and they are not cached as the result for the content.
+     */
+    Map<String, Set<String>> analyze(String content, Plan plan, int chunkSize, int maxChars, Deadline deadline) {
+        int length = analyzedLength(content, maxChars);
+        boolean chunked = chunkSize > 0 && length > chunkSize;
+        if (chunked == false && length < content.length()) {
+            content = content.substring(0, length);
+        }
+        // hashing needs the whole content as one byte array, which is exactly what chunking tries to avoid
+        ResultCache.ContentHash hash = resultCache == null || chunked ? null : ResultCache.hash(content);
+        Map<String, Set<String>> entities = new HashMap<>(plan.fields.size());
+        Map<String, Set<String>> patternEntities = patternEntities(plan);
+        Selection selection = select(plan, content, hash, entities);
+        int size = selection.names.length;
+        if (size == 0 && patternEntities == null) {
+            return entities;
+        }
+
+        SentenceBatch total = new SentenceBatch(size);
+        int sentenceCount = 0;
+        if (chunked) {
+            for (int start = 0; start < length && deadline.check() == false; ) {
+                Chunk chunk = nextChunk(content, start, length, chunkSize);
+                if (size > 0) {
+                    analyzeSentences(chunk.text, chunk.sentences, chunk.end - start, selection.loaded, total, deadline);
+                    sentenceCount += chunk.sentences.length;
+                }
+                if (patternEntities != null && deadline.check() == false) {
+                    patternFinder.find(content.substring(start, chunk.end), patternEntities, stats);
+                }
+                start = chunk.end;
+            }
+        } else {
+            if (size > 0) {
+                Span[] sentences = detectSentencePositions(content);
+                analyzeSentences(content, sentences, content.length(), selection.loaded, total, deadline);
+                sentenceCount = sentences.length;
+            }
+            // patterns run over the raw text, sentence boundaries may be wrong within URLs or email addresses
+            if (patternEntities != null && deadline.check() == false) {
+                patternFinder.find(content, patternEntities, stats);
+            }
+        }
+        complete(selection, total, patternEntities, entities, length, sentenceCount);
+
+        if (hash != null && deadline.expired() == false) {
+            for (int i = 0; i < size; i++) {
+                Set<String> result = Collections.unmodifiableSet(new HashSet<>(entities.get(selection.names[i])));
+                resultCache.put(selection.loaded[i].generation, hash, result);
+            }
+        }
+
+        return entities;
+    }
+
+    /**
+     * Analyzes many texts of the same document, like the comments of a post, in a single pass. The texts are joined
+     * and sentences are detected per text, so no sentence spans two texts. Decoders are borrowed once for all of them,
+     * and every distinct entity only becomes a string once.
+     *
+     * The language is detected once for all texts. Texts longer than the chunk size are analyzed on their own, and the
+     * result cache is not used.
+     */
+    Map<String, Set<String>> analyze(List<String> contents, Plan plan, int chunkSize, int maxChars) {
+        return analyze(contents, plan, chunkSize, maxChars, Deadline.NONE);
+    }
+
+    /**
+     * Like {@link #analyze(List, Plan, int, int)}, but stops once the deadline has passed, see
+     * {@link #analyze(String, Plan, int, int, Deadline)}
+     */
+    Map<String, Set<String>> analyze(List<String> contents, Plan plan, int chunkSize, int maxChars, Deadline deadline) {
+        if (contents.size() == 1) {
+            return analyze(contents.get(0), plan, chunkSize, maxChars, deadline);
+        }
+        Map<String, Set<String>> entities = new HashMap<>(plan.fields.size());
+        StringBuilder joined = new StringBuilder();
+        List<Integer> offsets = new ArrayList<>(contents.size());
+        for (String content : contents) {
+            int length = analyzedLength(content, maxChars);
+            if (chunkSize > 0 && length > chunkSize) {
+                if (deadline.check() == false) {
+                    merge(entities, analyze(content, plan, chunkSize, maxChars, deadline));
+                }
+                continue;
+            }
+            if (joined.length() > 0) {
+                joined.append('\n');
+            }
+            offsets.add(joined.length());
+            joined.append(content, 0, length);
+        }
+        if (offsets.isEmpty() || deadline.check()) {
+            return entities;
+        }
+
+        String text = joined.toString();
+        Map<String, Set<String>> batchEntities = new HashMap<>(plan.fields.size());
+        Map<String, Set<String>> patternEntities = patternEntities(plan);
+        Selection selection = select(plan, text, null, batchEntities);
+        int size = selection.names.length;
+        SentenceBatch total = new SentenceBatch(size);
+        List<Span> sentences = new ArrayList<>();
+        for (int i = 0; i < offsets.size() && deadline.check() == false; i++) {
+            int start = offsets.get(i);
+            int end = i + 1 < offsets.size() ? offsets.get(i + 1) - 1 : text.length();
+            String content = text.substring(start, end);
+            if (size > 0) {
+                for (Span sentence : detectSentencePositions(content)) {
+                    sentences.add(new Span(start + sentence.getStart(), start + sentence.getEnd()));
+                }
+            }
+            if (patternEntities != null) {
+                patternFinder.find(content, patternEntities, stats);
+            }
+        }
+        if (size > 0) {
+            analyzeSentences(text, sentences.toArray(new Span[sentences.size()]), text.length(), selection.loaded, total, deadline);
+        }
+        complete(selection, total, patternEntities, batchEntities, text.length(), sentences.size());
+        merge(entities, batchEntities);
+        return entities;
+    }
+
+    private static void merge(Map<String, Set<String>> entities, Map<String, Set<String>> other) {
+        for (Map.Entry<String, Set<String>> entry : other.entrySet()) {
+            Set<String> existing = entities.get(entry.getKey());
+            if (existing == null) {
+                entities.put(entry.getKey(), entry.getValue());
             } else {
-                if (sentenceThreadLocal.get() == null || !sentenceThreadLocal.get().equals(this.sentenceModel)) {
-                    sentenceThreadLocal.set(this.sentenceModel);
+                existing.addAll(entry.getValue());
+            }
+        }
+    }
+
+    private Map<String, Set<String>> patternEntities(Plan plan) {
+        if (plan.patterns.isEmpty()) {
+            return null;
+        }
+        Map<String, Set<String>> patternEntities = new HashMap<>(plan.patterns.size());
+        for (String field : plan.patterns) {
+            patternEntities.put(field, new HashSet<>());
+        }
+        return patternEntities;
+    }
+
+    /**
+     * Picks the model for every field of the plan, following the language of the content. Fields with a cached result
+     * for the content are added to the entities right away and are not part of the selection.
+     */
+    private Selection select(Plan plan, String content, ResultCache.ContentHash hash, Map<String, Set<String>> entities) {
+        // plain arrays instead of maps, the sentence loop runs for every sentence and model
+        String[] names = new String[plan.names.length];
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        ModelHolder.Loaded<?, TokenNameFinder>[] loaded = new ModelHolder.Loaded[plan.names.length];
+        int size = 0;
+        Map<String, ModelHolder<?, TokenNameFinder>> languageRoute = null;
+        boolean languageRouted = false;
+        for (int f = 0; f < plan.names.length; f++) {
+            ModelHolder<?, TokenNameFinder> holder = plan.holders[f];
+            if (plan.routed[f]) {
+                if (languageRouted == false) {
+                    languageRoute = modelsForLanguage(content);
+                    languageRouted = true;
+                }
+                if (languageRoute != null) {
+                    holder = languageRoute.get(plan.names[f]);
+                    if (holder == null) {
+                        // no model for this entity type in the language of the document
+                        continue;
+                    }
                 }
-                SentenceDetectorME detector = new SentenceDetectorME(this.sentenceModel);
+            }
+            ModelHolder.Loaded<?, TokenNameFinder> model = holder.get();
+            if (hash != null) {
+                Set<String> cached = resultCache.get(model.generation, hash);
+                if (cached != null) {
+                    entities.put(plan.names[f], new HashSet<>(cached));
+                    continue;
+                }
+            }
+            names[size] = plan.names[f];
+            loaded[size] = model;
+            size++;
+        }
+        if (size < names.length) {
+            names = Arrays.copyOf(names, size);
+            loaded = Arrays.copyOf(loaded, size);
+        }
+        return new Selection(names, loaded);
+    }
+
+    /**
+     * The fields that have to be analyzed for one document, and the models chosen for them
+     */
+    private static final class Selection {
+
+        final String[] names;
+        final ModelHolder.Loaded<?, TokenNameFinder>[] loaded;
+
+        Selection(String[] names, ModelHolder.Loaded<?, TokenNameFinder>[] loaded) {
+            this.names = names;
+            this.loaded = loaded;
+        }
+    }
+
+    private void complete(Selection selection, SentenceBatch total, Map<String, Set<String>> patternEntities,
+                          Map<String, Set<String>> entities, int length, int sentenceCount) {
+        stats.onDocument(length, sentenceCount, total.tokens);
+        stats.onTokenization(total.tokenizationNanos);
+        SlowLog.Timings timings = timings();
+        if (timings != null) {
+            timings.onDocument(length, sentenceCount, total.tokens, total.tokenizationNanos);
+        }
+        for (int i = 0; i < selection.names.length; i++) {
+            entities.put(selection.names[i], total.entities.get(i));
+            stats.onModel(selection.names[i], length, total.modelNanos[i]);
+            if (timings != null) {
+                timings.onModel(selection.names[i], total.modelNanos[i]);
+            }
+        }
+        if (patternEntities != null) {
+            entities.putAll(patternEntities);
+        }
+    }
+
+    /**
+     * Detects the language of the beginning of the content
+     *
+     * @return the models for that language, or null if the default models should be used
+     */
+    private Map<String, ModelHolder<?, TokenNameFinder>> modelsForLanguage(String content) {
+        String language = detectLanguage(content);
+        if (language.equals(defaultLanguage)) {
+            return null;
+        }
+        Map<String, ModelHolder<?, TokenNameFinder>> models = languageModels.get(language);
+        if (models != null) {
+            return models;
+        }
+        return languageFallback ? null : Collections.emptyMap();
+    }
+
+    String detectLanguage(String content) {
+        ModelHolder.Loaded<LanguageDetectorModel, LanguageDetectorME> loaded = languageModel.get();
+        // the beginning of a document is as good as the whole for telling the language apart
+        CharSequence sample = content.length() > LANGUAGE_SAMPLE_LENGTH ? content.subSequence(0, LANGUAGE_SAMPLE_LENGTH) : content;
+        LanguageDetectorME detector = loaded.pool.acquire();
+        long start = System.nanoTime();
+        String language;
+        try {
+            language = detector.predictLanguage(sample).getLang();
+        } finally {
+            loaded.pool.release(detector);
+        }
+        long nanos = System.nanoTime() - start;
+        stats.onLanguage(language, nanos);
+        SlowLog.Timings timings = timings();
+        if (timings != null) {
+            timings.languageNanos += nanos;
+        }
+        return language;
+    }
+
+    private static int analyzedLength(String content, int maxChars) {
+        return maxChars > 0 ? Math.min(maxChars, content.length()) : content.length();
+    }
+
+    /**
+     * Runs the models over the sentences and adds the results to the total. Batches are merged in sentence order, so
+     * the result does not depend on which batch finished first.
+     */
+    private void analyzeSentences(String text, Span[] sentences, int length, ModelHolder.Loaded<?, TokenNameFinder>[] models,
+                                  SentenceBatch total, Deadline deadline) {
+        if (parallelPool != null && length >= parallelMinLength && sentences.length > 1) {
+            for (SentenceBatch batch : analyzeInParallel(text, sentences, models, deadline)) {
+                total.add(batch);
+            }
+        } else {
+            total.add(analyzeSentences(text, sentences, 0, sentences.length, models, deadline));
+        }
+    }
+
+    /**
+     * @return the offsets of the sentences in the text, which is a single sentence if there is no sentence model
+     */
+    private Span[] detectSentencePositions(String text) {
+        if (this.sentenceModel == null) {
+            return new Span[] { new Span(0, text.length()) };
+        }
+        DecoderPool<SentenceDetectorME> sentenceDetectorPool = sentenceModel.get().pool;
+        SentenceDetectorME detector = sentenceDetectorPool.acquire();
+        long start = System.nanoTime();
+        try {
+            return detector.sentPosDetect(text);
+        } finally {
+            sentenceDetectorPool.release(detector);
+            long nanos = System.nanoTime() - start;
+            stats.onSentenceDetection(nanos);
+            SlowLog.Timings timings = timings();
+            if (timings != null) {
+                timings.sentenceDetectionNanos += nanos;
+            }
+        }
+    }
+
+    /**
+     * Cuts the next window out of the content. Unless the window reaches the end, its last sentence may be incomplete and
+     * is left for the next window. A window without any sentence boundary is cut at its last whitespace, or at the chunk
+     * size if there is none, so a single huge sentence cannot blow up memory either.
+     */
+    private Chunk nextChunk(String content, int start, int length, int chunkSize) {
+        int end = Math.min(start + chunkSize, length);
+        String window = content.substring(start, end);
+        if (end == length) {
+            return new Chunk(window, detectSentencePositions(window), end);
+        }
 
-                //Detecting the sentence
-                String sentences[] = detector.sentDetect(content);
+        if (this.sentenceModel != null) {
+            Span[] spans = detectSentencePositions(window);
+            if (spans.length > 1) {
+                Span[] complete = Arrays.copyOf(spans, spans.length - 1);
+                return new Chunk(window, complete, start + spans[spans.length - 1].getStart());
+            }
+        }
 
-                for (String sentence : sentences) {
-                    set.addAll(Sets.newHashSet(this.getNames(sentence, nameFinderME)));
+        int cut = window.length();
+        while (cut > 0 && Character.isWhitespace(window.charAt(cut - 1)) == false) {
+            cut--;
+        }
+        if (cut == 0) {
+            cut = window.length();
+        }
+        return new Chunk(window, new Span[] { new Span(0, cut) }, start + cut);
+    }
+
+    /**
+     * The complete sentences of one window as offsets into the window, and the offset at which the next window starts
+     */
+    private static final class Chunk {
+
+        final String text;
+        final Span[] sentences;
+        final int end;
+
+        Chunk(String text, Span[] sentences, int end) {
+            this.text = text;
+            this.sentences = sentences;
+            this.end = end;
+        }
+    }
+
+    /**
+     * Splits the sentences into one batch per parallel thread plus one for the calling thread. Every batch borrows its
+     * own decoders, so batches share nothing but the models.
+     */
+    private List<SentenceBatch> analyzeInParallel(String text, Span[] sentences,
+                                                  ModelHolder.Loaded<?, TokenNameFinder>[] models, Deadline deadline) {
+        int batchCount = Math.min(parallelPool.getParallelism() + 1, sentences.length);
+        int batchSize = (sentences.length + batchCount - 1) / batchCount;
+
+        List<CompletableFuture<SentenceBatch>> futures = new ArrayList<>(batchCount - 1);
+        for (int from = batchSize; from < sentences.length; from += batchSize) {
+            int batchStart = from;
+            int batchEnd = Math.min(from + batchSize, sentences.length);
+            futures.add(CompletableFuture.supplyAsync(() -> analyzeSentences(text, sentences, batchStart, batchEnd, models, deadline),
+                    parallelPool));
+        }
+
+        List<SentenceBatch> batches = new ArrayList<>(futures.size() + 1);
+        // the calling thread works on the first batch instead of waiting idle
+        batches.add(analyzeSentences(text, sentences, 0, Math.min(batchSize, sentences.length), models, deadline));
+        for (CompletableFuture<SentenceBatch> future : futures) {
+            try {
+                batches.add(future.join());
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw new ElasticsearchException(e.getCause());
+            }
+        }
+        return batches;
+    }
+
+    /**
+     * Tokenizes every sentence into the buffer of the current thread. Without sentence cache the found entities stay
+     * offsets into the text until the batch is done, and only distinct entities become strings.
+     *
+     * The deadline is checked before every sentence and model. Entities found before it passed are kept.
+     */
+    private SentenceBatch analyzeSentences(String text, Span[] sentences, int from, int to,
+                                           ModelHolder.Loaded<?, TokenNameFinder>[] models, Deadline deadline) {
+        int size = models.length;
+        SentenceBatch batch = new SentenceBatch(size);
+        TokenNameFinder[] nameFinders = new TokenNameFinder[size];
+        EntityCollector[] collectors = new EntityCollector[size];
+        TokenBuffer buffer = TokenBuffer.get();
+        try {
+            for (int i = 0; i < size; i++) {
+                nameFinders[i] = models[i].pool.acquire();
+            }
+
+            // the sentence cache only helps if there is more than one sentence per document
+            SentenceCache sentenceCache = this.sentenceModel == null ? null : this.sentenceCache;
+            for (int s = from; s < to && deadline.check() == false; s++) {
+                Span sentence = sentences[s];
+                long sentenceHash = sentenceCache == null ? 0 : SentenceCache.hash(text, sentence.getStart(), sentence.getEnd());
+                long sentenceCheck = sentenceCache == null ? 0 : SentenceCache.check(text, sentence.getStart(), sentence.getEnd());
+                String[] tokens = null;
+                for (int i = 0; i < size && deadline.check() == false; i++) {
+                    long key = 0;
+                    if (sentenceCache != null) {
+                        key = SentenceCache.key(sentenceHash, models[i].generation);
+                        String[] cached = sentenceCache.get(key, sentenceCheck);
+                        if (cached != null) {
+                            Collections.addAll(batch.entities.get(i), cached);
+                            continue;
+                        }
+                    }
+
+                    if (tokens == null) {
+                        long start = System.nanoTime();
+                        buffer.tokenize(text, sentence.getStart(), sentence.getEnd());
+                        tokens = buffer.toStrings(text);
+                        batch.tokenizationNanos += System.nanoTime() - start;
+                        batch.tokens += tokens.length;
+                    }
+                    if (sentenceCache != null) {
+                        // cached entities must not depend on the sentences decoded before, see SentenceCache
+                        nameFinders[i].clearAdaptiveData();
+                    }
+                    long start = System.nanoTime();
+                    Span[] spans = nameFinders[i].find(tokens);
+                    batch.modelNanos[i] += System.nanoTime() - start;
+                    if (sentenceCache != null) {
+                        // cached entities outlive the text, so they have to be strings right away
+                        String[] found = Span.spansToStrings(spans, tokens);
+                        Collections.addAll(batch.entities.get(i), found);
+                        sentenceCache.put(key, sentenceCheck, found);
+                    } else if (spans.length > 0) {
+                        if (collectors[i] == null) {
+                            collectors[i] = new EntityCollector();
+                        }
+                        for (Span span : spans) {
+                            collectors[i].add(buffer.start(span.getStart()), buffer.end(span.getEnd() - 1));
+                        }
+                    }
+                }
+            }
+
+            for (int i = 0; i < size; i++) {
+                if (collectors[i] != null) {
+                    collectors[i].addTo(batch.entities.get(i), text, buffer);
                 }
             }
-//            return Sets.newHashSet(names);
-            return set;
         } finally {
-            nerThreadLocal.remove();
-            if (sentenceThreadLocal.get() != null) {
-                this.sentenceThreadLocal.remove();
+            // adaptive data is cleared on release, so the next document starts from scratch
+            for (int i = 0; i < size; i++) {
+                if (nameFinders[i] != null) {
+                    models[i].pool.release(nameFinders[i]);
+                }
             }
+            buffer.trim();
+        }
+        return batch;
+    }
+
+    /**
+     * The entities and timings of a consecutive range of sentences, one entry per model
+     */
+    private static final class SentenceBatch {
+
+        final List<Set<String>> entities;
+        final long[] modelNanos;
+        long tokenizationNanos;
+        int tokens;
+
+        SentenceBatch(int models) {
+            this.entities = new ArrayList<>(models);
+            for (int i = 0; i < models; i++) {
+                entities.add(new HashSet<>());
+            }
+            this.modelNanos = new long[models];
+        }
+
+        void add(SentenceBatch other) {
+            for (int i = 0; i < modelNanos.length; i++) {
+                entities.get(i).addAll(other.entities.get(i));
+                modelNanos[i] += other.modelNanos[i];
+            }
+            tokenizationNanos += other.tokenizationNanos;
+            tokens += other.tokens;
         }
     }
 
     public String getSentiment(String content) {
+        return getSentiment(content, 0, 0);
+    }
+
+    /**
+     * Like {@link #getSentiment(String)}, but with the same windowing as {@link #analyze(String, Set, int, int)}. The
+     * sentiment of a chunked document is the one predicted for most of its characters.
+     */
+    public String getSentiment(String content, int chunkSize, int maxChars) {
+        return getSentiment(content, chunkSize, maxChars, Deadline.NONE);
+    }
+
+    /**
+     * Like {@link #getSentiment(String, int, int)}, but stops between chunks once the deadline has passed
+     *
+     * @return the sentiment of the chunks analyzed so far, or null if the deadline passed before the first one
+     */
+    String getSentiment(String content, int chunkSize, int maxChars, Deadline deadline) {
         if (!this.miscGroupExists()) {
             throw new RuntimeException("Sentiment model not enabled.");
         }
-        try{
-            SentimentModel sentimentModel = this.sentimentModel;
-            if (sentimentThreadLocal.get() == null || !sentimentThreadLocal.get().equals(sentimentModel)) {
-                sentimentThreadLocal.set(sentimentModel);
+        int length = analyzedLength(content, maxChars);
+        boolean chunked = chunkSize > 0 && length > chunkSize;
+        if (chunked == false && length < content.length()) {
+            content = content.substring(0, length);
+        }
+        ModelHolder.Loaded<SentimentModel, SentimentME> loaded = sentimentModel.get();
+        ResultCache.ContentHash hash = resultCache == null || chunked ? null : ResultCache.hash(content);
+        if (hash != null) {
+            String cached = resultCache.get(loaded.generation, hash);
+            if (cached != null) {
+                return cached;
+            }
+        }
+
+        String sentiment;
+        if (chunked) {
+            Map<String, Integer> weights = new HashMap<>();
+            String winner = null;
+            int winnerWeight = 0;
+            for (int start = 0; start < length && deadline.check() == false; ) {
+                int end = nextChunk(content, start, length, chunkSize).end;
+                String rawSentiment = predictSentiment(loaded, content.substring(start, end));
+                int weight = weights.merge(rawSentiment, end - start, Integer::sum);
+                if (weight > winnerWeight) {
+                    winner = rawSentiment;
+                    winnerWeight = weight;
+                }
+                start = end;
             }
-            SentimentME sentimentME = new SentimentME(sentimentModel);
-            String sentiment = toSimpleSentiment(sentimentME.predict(content));
-            return sentiment;
+            sentiment = winner == null ? null : toSimpleSentiment(winner);
+        } else if (deadline.check()) {
+            return null;
+        } else {
+            sentiment = toSimpleSentiment(predictSentiment(loaded, content));
+        }
+
+        if (hash != null && deadline.expired() == false) {
+            resultCache.put(loaded.generation, hash, sentiment);
+        }
+        return sentiment;
+    }
+
+    /**
+     * The sentiment of many texts of the same document, which is the one predicted for most of their characters, just
+     * like for a chunked document
+     */
+    public String getSentiment(List<String> contents, int chunkSize, int maxChars) {
+        return getSentiment(contents, chunkSize, maxChars, Deadline.NONE);
+    }
+
+    /**
+     * Like {@link #getSentiment(List, int, int)}, but stops once the deadline has passed
+     *
+     * @return the sentiment of the texts analyzed so far, or null if the deadline passed before the first one
+     */
+    String getSentiment(List<String> contents, int chunkSize, int maxChars, Deadline deadline) {
+        Map<String, Integer> weights = new HashMap<>();
+        String winner = "";
+        int winnerWeight = 0;
+        for (String content : contents) {
+            String sentiment = getSentiment(content, chunkSize, maxChars, deadline);
+            if (sentiment == null) {
+                break;
+            }
+            int weight = weights.merge(sentiment, analyzedLength(content, maxChars), Integer::sum);
+            if (weight > winnerWeight) {
+                winner = sentiment;
+                winnerWeight = weight;
+            }
+        }
+        return winnerWeight == 0 && deadline.expired() ? null : winner;
+    }
+
+    private String predictSentiment(ModelHolder.Loaded<SentimentModel, SentimentME> loaded, String text) {
+        SentimentME sentimentME = loaded.pool.acquire();
+        long start = System.nanoTime();
+        try {
+            return sentimentME.predict(text);
         } finally {
-            sentimentThreadLocal.remove();
+            loaded.pool.release(sentimentME);
+            long nanos = System.nanoTime() - start;
+            stats.onSentiment(nanos);
+            SlowLog.Timings timings = timings();
+            if (timings != null) {
+                timings.sentimentNanos += nanos;
+            }
         }
     }
 
@@ -185,51 +1180,190 @@ public class OpenNlpService {
     }
 
     public boolean miscGroupExists() {
-        return Setting.groupSetting("ingest.opennlp.misc.file.").exists(settings);
+        // the misc group also holds the language detection model, the name is kept for compatibility
+        return IngestOpenNlpPlugin.MISC_FILE_SETTINGS.get(settings).get("sentiment") != null;
     }
 
     public boolean tokenizerGroupExists() {
         return Setting.groupSetting("ingest.opennlp.tokenizer.file.").exists(settings);
     }
 
-    private SentimentModel loadSentimentModel() {
+    /**
+     * Writes the node level statistics, including the state of all models, their decoder pools and the caches
+     */
+    void statsToXContent(XContentBuilder builder, ToXContent.Params params) throws IOException {
+        stats.toXContent(builder, params);
 
-        if (this.miscGroupExists()) {
+        builder.startObject("models");
+        for (ModelHolder<?, ?> holder : holders()) {
+            ModelHolder.Loaded<?, ?> loaded = holder.current();
+            builder.startObject(holder.name());
+            builder.field("loaded", loaded != null);
+            builder.field("loads", holder.loads());
+            builder.field("evictions", holder.evictions());
+            builder.field("pinned", memory.isPinned(holder));
+            builder.byteSizeField("estimated_size_in_bytes", "estimated_size", holder.estimatedBytes());
+            if (loaded != null) {
+                builder.startObject("pool");
+                builder.field("created", loaded.pool.created());
+                builder.field("reused", loaded.pool.reused());
+                builder.field("idle", loaded.pool.idle());
+                builder.endObject();
+            }
+            builder.endObject();
+        }
+        builder.endObject();
 
-            String name = "sentiment";
-            String modelName = Setting.groupSetting("ingest.opennlp.misc.file.").get(settings).get(name);
+        memory.toXContent(builder, params);
 
-            Path path = configDirectory.resolve(modelName);
+        if (resultCache != null) {
+            builder.startObject("cache");
+            builder.field("count", resultCache.count());
+            builder.field("size_in_bytes", resultCache.weight());
+            builder.field("hits", resultCache.stats().getHits());
+            builder.field("misses", resultCache.stats().getMisses());
+            builder.field("evictions", resultCache.stats().getEvictions());
+            builder.endObject();
+        }
+        if (sentenceCache != null) {
+            builder.startObject("sentence_cache");
+            builder.field("hits", sentenceCache.hits());
+            builder.field("misses", sentenceCache.misses());
+            builder.field("evictions", sentenceCache.evictions());
+            builder.endObject();
+        }
+    }
 
-            try {
-                SentimentModel sentimentModel = new SentimentModel(path.toUri().toURL());
-                return sentimentModel;
-            } catch (IOException e) {
-                logger.error((Supplier<?>) () -> new ParameterizedMessage("Could not load sentiment model"), e);
+    /**
+     * Evicts the models which have not been used within {@code ingest.opennlp.memory.idle_timeout}
+     */
+    void evictIdleModels() {
+        memory.evictIdle();
+    }
+
+    ModelMemory getMemory() {
+        return memory;
+    }
+
+    /**
+     * Moves the analysis of documents from the ingest threads to the given executor, see {@link #run(CheckedRunnable)}
+     */
+    void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Runs the analysis of a document on the executor and waits for it, so the number of documents analyzed at the same
+     * time is bounded by the executor and not by the ingest threads. If the executor rejects the analysis, the rejection
+     * is passed on to the caller, which reaches bulk clients as a 429, unless the caller is configured to run it itself.
+     * Without executor the analysis runs on the calling thread.
+     */
+    void run(CheckedRunnable<Exception> analysis) throws Exception {
+        Executor executor = this.executor;
+        if (executor == null) {
+            analysis.run();
+            return;
+        }
+        FutureTask<Void> task = new FutureTask<>(() -> {
+            analysis.run();
+            return null;
+        });
+        try {
+            executor.execute(task);
+        } catch (EsRejectedExecutionException | RejectedExecutionException e) {
+            // the fixed executors of elasticsearch reject with their own exception, which is no RejectedExecutionException
+            if (callerRuns == false) {
+                throw e;
+            }
+            task.run();
+        }
+        try {
+            task.get();
+        } catch (InterruptedException e) {
+            task.cancel(true);
+            Thread.currentThread().interrupt();
+            throw e;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
             }
+            throw new ElasticsearchException(e.getCause());
         }
+    }
 
-        return null;
+    /**
+     * Like {@link #run(CheckedRunnable)}, but collects the time spent per stage into the given timings, which must only be
+     * used for a single document
+     */
+    void run(CheckedRunnable<Exception> analysis, SlowLog.Timings documentTimings) throws Exception {
+        run(() -> {
+            timings.set(documentTimings);
+            try {
+                analysis.run();
+            } finally {
+                timings.remove();
+            }
+        });
     }
 
-    private SentenceModel loadSentenceModel() {
+    /**
+     * @return the timings of the document analyzed by the current thread, or null if they are not collected
+     */
+    private SlowLog.Timings timings() {
+        return slowLog == null ? null : timings.get();
+    }
 
-        if (this.tokenizerGroupExists()) {
+    /**
+     * @return the slow log, or null if it is disabled
+     */
+    SlowLog getSlowLog() {
+        return slowLog;
+    }
+
+    OpenNlpStats getStats() {
+        return stats;
+    }
 
-            String name = "sentences";
-            String modelName = Setting.groupSetting("ingest.opennlp.tokenizer.file.").get(settings).get(name);
-            Path path = configDirectory.resolve(modelName);
+    ResultCache getResultCache() {
+        return resultCache;
+    }
 
-            try (InputStream is = Files.newInputStream(path)) {
-                SentenceModel sentenceModel = new SentenceModel(is);
-                return sentenceModel;
-            } catch (IOException e) {
-                logger.error((Supplier<?>) () -> new ParameterizedMessage("Could not load model [{}] with path [{}]", name, path), e);
-            }
+    SentenceCache getSentenceCache() {
+        return sentenceCache;
+    }
 
-        }
+    ModelHolder<SentenceModel, SentenceDetectorME> getSentenceModel() {
+        return sentenceModel;
+    }
+
+    ModelHolder<?, TokenNameFinder> getNameFinderModel(String name) {
+        return nameFinderModels.get(name);
+    }
 
-        return null;
+    ModelHolder<?, TokenNameFinder> getLanguageModel(String language, String name) {
+        Map<String, ModelHolder<?, TokenNameFinder>> models = languageModels.get(language);
+        return models == null ? null : models.get(name);
+    }
+
+    DecoderPool<TokenNameFinder> getNameFinderPool(String name) {
+        return nameFinderModels.get(name).get().pool;
+    }
+
+    DecoderPool<SentenceDetectorME> getSentenceDetectorPool() {
+        return sentenceModel.get().pool;
+    }
+
+    DecoderPool<SentimentME> getSentimentPool() {
+        return sentimentModel.get().pool;
+    }
+
+    /**
+     * Stops the threads used to analyze large documents in parallel
+     */
+    public void close() {
+        if (parallelPool != null) {
+            parallelPool.shutdownNow();
+        }
     }
 
     public Settings getSettings() {
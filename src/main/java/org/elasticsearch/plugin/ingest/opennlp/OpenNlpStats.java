@@ -0,0 +1,226 @@
+/*
+ * Copyright [2016] [Alexander Reelsen]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.elasticsearch.plugin.ingest.opennlp;
+
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Node level statistics of the OpenNLP service. All counters are striped, so recording on the ingest path is cheap and
+ * does not contend between threads.
+ */
+final class OpenNlpStats implements ToXContent {
+
+    private final LongAdder documents = new LongAdder();
+    private final LongAdder characters = new LongAdder();
+    private final LongAdder sentences = new LongAdder();
+    private final LongAdder tokens = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+
+    private final LatencyHistogram sentenceDetection = new LatencyHistogram();
+    private final LatencyHistogram tokenization = new LatencyHistogram();
+    private final LatencyHistogram sentiment = new LatencyHistogram();
+    private final Map<String, ModelStats> models = new ConcurrentHashMap<>();
+    private final LatencyHistogram patternScans = new LatencyHistogram();
+    private final Map<String, LatencyHistogram> patterns = new ConcurrentHashMap<>();
+    private final LatencyHistogram languageDetection = new LatencyHistogram();
+    private final Map<String, LongAdder> languages = new ConcurrentHashMap<>();
+    private final LongAdder preFilterPassed = new LongAdder();
+    private final LongAdder[] preFilterSkipped = new LongAdder[PreFilter.Reason.values().length];
+
+    OpenNlpStats() {
+        for (int i = 0; i < preFilterSkipped.length; i++) {
+            preFilterSkipped[i] = new LongAdder();
+        }
+    }
+
+    void onDocument(int characters, int sentences, int tokens) {
+        this.documents.increment();
+        this.characters.add(characters);
+        this.sentences.add(sentences);
+        this.tokens.add(tokens);
+    }
+
+    void onTimeout() {
+        timeouts.increment();
+    }
+
+    void onSentenceDetection(long nanos) {
+        sentenceDetection.record(nanos);
+    }
+
+    void onTokenization(long nanos) {
+        tokenization.record(nanos);
+    }
+
+    void onSentiment(long nanos) {
+        sentiment.record(nanos);
+    }
+
+    void onModel(String model, int characters, long nanos) {
+        ModelStats stats = models.computeIfAbsent(model, name -> new ModelStats());
+        stats.documents.increment();
+        stats.characters.add(characters);
+        stats.latency.record(nanos);
+    }
+
+    void onPatternScan(long nanos) {
+        patternScans.record(nanos);
+    }
+
+    void onPattern(String pattern, long nanos) {
+        patterns.computeIfAbsent(pattern, name -> new LatencyHistogram()).record(nanos);
+    }
+
+    void onLanguage(String language, long nanos) {
+        languageDetection.record(nanos);
+        languages.computeIfAbsent(language, name -> new LongAdder()).increment();
+    }
+
+    void onPreFilterPass() {
+        preFilterPassed.increment();
+    }
+
+    void onPreFilterSkip(PreFilter.Reason reason) {
+        preFilterSkipped[reason.ordinal()].increment();
+    }
+
+    long preFilterPassed() {
+        return preFilterPassed.sum();
+    }
+
+    long preFilterSkipped(PreFilter.Reason reason) {
+        return preFilterSkipped[reason.ordinal()].sum();
+    }
+
+    long documents() {
+        return documents.sum();
+    }
+
+    long timeouts() {
+        return timeouts.sum();
+    }
+
+    LatencyHistogram model(String model) {
+        ModelStats stats = models.get(model);
+        return stats == null ? null : stats.latency;
+    }
+
+    long modelDocuments(String model) {
+        ModelStats stats = models.get(model);
+        return stats == null ? 0 : stats.documents.sum();
+    }
+
+    long modelCharacters(String model) {
+        ModelStats stats = models.get(model);
+        return stats == null ? 0 : stats.characters.sum();
+    }
+
+    long language(String language) {
+        LongAdder count = languages.get(language);
+        return count == null ? 0 : count.sum();
+    }
+
+    LatencyHistogram patternScans() {
+        return patternScans;
+    }
+
+    LatencyHistogram pattern(String pattern) {
+        return patterns.get(pattern);
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.field("documents", documents.sum());
+        builder.field("characters", characters.sum());
+        builder.field("sentences", sentences.sum());
+        builder.field("tokens", tokens.sum());
+        builder.field("timeouts", timeouts.sum());
+
+        builder.startObject("sentence_detection");
+        sentenceDetection.toXContent(builder, params);
+        builder.endObject();
+        builder.startObject("tokenization");
+        tokenization.toXContent(builder, params);
+        builder.endObject();
+        builder.startObject("sentiment");
+        sentiment.toXContent(builder, params);
+        builder.endObject();
+
+        builder.startObject("language_detection");
+        languageDetection.toXContent(builder, params);
+        builder.endObject();
+        builder.startObject("languages");
+        for (Map.Entry<String, LongAdder> entry : new TreeMap<>(languages).entrySet()) {
+            builder.field(entry.getKey(), entry.getValue().sum());
+        }
+        builder.endObject();
+
+        builder.startObject("ner");
+        for (Map.Entry<String, ModelStats> entry : new TreeMap<>(models).entrySet()) {
+            builder.startObject(entry.getKey());
+            builder.field("documents", entry.getValue().documents.sum());
+            builder.field("characters", entry.getValue().characters.sum());
+            entry.getValue().latency.toXContent(builder, params);
+            builder.endObject();
+        }
+        builder.endObject();
+
+        builder.startObject("prefilter");
+        builder.field("passed", preFilterPassed.sum());
+        builder.startObject("skipped");
+        for (PreFilter.Reason reason : PreFilter.Reason.values()) {
+            builder.field(reason.fieldName(), preFilterSkipped[reason.ordinal()].sum());
+        }
+        builder.endObject();
+        builder.endObject();
+
+        builder.startObject("patterns");
+        builder.startObject("scan");
+        patternScans.toXContent(builder, params);
+        builder.endObject();
+        // only every PatternEntityFinder.SAMPLE_INTERVAL scans are timed per pattern
+        builder.startObject("sampled");
+        histogramsToXContent(patterns, builder, params);
+        builder.endObject();
+        builder.endObject();
+        return builder;
+    }
+
+    private static void histogramsToXContent(Map<String, LatencyHistogram> histograms, XContentBuilder builder,
+                                             Params params) throws IOException {
+        for (Map.Entry<String, LatencyHistogram> entry : new TreeMap<>(histograms).entrySet()) {
+            builder.startObject(entry.getKey());
+            entry.getValue().toXContent(builder, params);
+            builder.endObject();
+        }
+    }
+
+    private static final class ModelStats {
+
+        final LongAdder documents = new LongAdder();
+        final LongAdder characters = new LongAdder();
+        final LatencyHistogram latency = new LatencyHistogram();
+    }
+}
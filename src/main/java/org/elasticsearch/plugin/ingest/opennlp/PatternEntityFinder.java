@@ -0,0 +1,130 @@
+/*
+ * Copyright [2016] [Alexander Reelsen]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.elasticsearch.plugin.ingest.opennlp;
+
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.common.settings.Settings;
+
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Finds structured entities like emails, URLs or IBANs with regular expressions. All patterns are compiled once into a
+ * single alternation, so the text is scanned once no matter how many patterns are configured.
+ *
+ * As with any single regular expression, matches do not overlap. If several patterns match at the same position, the
+ * first one in alphabetical order of the names wins, and the scan goes on after the end of its match. Matches of other
+ * patterns starting within that match are lost, like the domain within an email address.
+ *
+ * A combined scan cannot tell how long each pattern took, so every {@link #SAMPLE_INTERVAL}th scan also runs every
+ * pattern on its own and records its time. That is enough to spot a single pattern that backtracks excessively.
+ */
+final class PatternEntityFinder {
+
+    static final int SAMPLE_INTERVAL = 100;
+
+    private final String[] names;
+    private final String[] groups;
+    private final Pattern[] patterns;
+    private final Pattern combined;
+    private final Set<String> nameSet;
+    private final AtomicLong scans = new AtomicLong();
+
+    private PatternEntityFinder(Map<String, String> sources) {
+        int size = sources.size();
+        this.names = new String[size];
+        this.groups = new String[size];
+        this.patterns = new Pattern[size];
+        StringBuilder combined = new StringBuilder();
+        int i = 0;
+        for (Map.Entry<String, String> entry : sources.entrySet()) {
+            names[i] = entry.getKey();
+            groups[i] = "opennlp" + i;
+            try {
+                patterns[i] = Pattern.compile(entry.getValue());
+            } catch (PatternSyntaxException e) {
+                throw new ElasticsearchException("Invalid pattern [{}] for field [{}]", e, entry.getValue(), entry.getKey());
+            }
+            if (i > 0) {
+                combined.append('|');
+            }
+            combined.append("(?<").append(groups[i]).append('>').append(entry.getValue()).append(')');
+            i++;
+        }
+        this.combined = Pattern.compile(combined.toString());
+        this.nameSet = Collections.unmodifiableSet(new LinkedHashSet<>(sources.keySet()));
+    }
+
+    /**
+     * @return the finder for the configured patterns, or null if there are none
+     */
+    static PatternEntityFinder create(Settings patternSettings) {
+        Map<String, String> sources = new TreeMap<>(patternSettings.getAsMap());
+        return sources.isEmpty() ? null : new PatternEntityFinder(sources);
+    }
+
+    Set<String> names() {
+        return nameSet;
+    }
+
+    boolean contains(String name) {
+        return nameSet.contains(name);
+    }
+
+    /**
+     * Adds the matches of all patterns to the set with the same name in the given map. Patterns without a set in the
+     * map are matched as well, but their results are dropped.
+     */
+    void find(CharSequence text, Map<String, Set<String>> entities, OpenNlpStats stats) {
+        long start = System.nanoTime();
+        Matcher matcher = combined.matcher(text);
+        while (matcher.find()) {
+            if (matcher.start() == matcher.end()) {
+                continue;
+            }
+            for (int i = 0; i < groups.length; i++) {
+                if (matcher.start(groups[i]) != -1) {
+                    Set<String> target = entities.get(names[i]);
+                    if (target != null) {
+                        target.add(matcher.group());
+                    }
+                    break;
+                }
+            }
+        }
+        stats.onPatternScan(System.nanoTime() - start);
+
+        if (scans.incrementAndGet() % SAMPLE_INTERVAL == 0) {
+            for (int i = 0; i < patterns.length; i++) {
+                long patternStart = System.nanoTime();
+                Matcher single = patterns[i].matcher(text);
+                while (single.find()) {
+                    // only the time counts
+                }
+                stats.onPattern(names[i], System.nanoTime() - patternStart);
+            }
+        }
+    }
+}
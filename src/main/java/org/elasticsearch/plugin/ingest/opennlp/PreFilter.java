@@ -0,0 +1,162 @@
+/*
+ * Copyright [2016] [Alexander Reelsen]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.elasticsearch.plugin.ingest.opennlp;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import static org.elasticsearch.ingest.ConfigurationUtils.newConfigurationException;
+import static org.elasticsearch.ingest.ConfigurationUtils.readIntProperty;
+import static org.elasticsearch.ingest.ConfigurationUtils.readOptionalMap;
+
+/**
+ * Decides whether a text is worth running the models on. Short, lower case or machine generated text like log lines,
+ * ids or hashes rarely contains any entities, but costs the full sentence detection, tokenization and decoding.
+ *
+ * The check is a single pass over the characters which does not allocate. Tokens are counted by whitespace, a token is
+ * a candidate for an entity if its first letter or digit is an upper case letter or a digit.
+ */
+final class PreFilter {
+
+    enum Reason {
+        MIN_LENGTH, MIN_CAPITALIZED_RATIO, MAX_NON_LETTER_RATIO, MIN_CANDIDATES;
+
+        String fieldName() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    private final int minLength;
+    private final double minCapitalizedRatio;
+    private final double maxNonLetterRatio;
+    private final int minCandidates;
+
+    PreFilter(int minLength, double minCapitalizedRatio, double maxNonLetterRatio, int minCandidates) {
+        this.minLength = minLength;
+        this.minCapitalizedRatio = minCapitalizedRatio;
+        this.maxNonLetterRatio = maxNonLetterRatio;
+        this.minCandidates = minCandidates;
+    }
+
+    /**
+     * Reads the optional {@code prefilter} object of the processor configuration
+     *
+     * @return the filter, or null if none is configured
+     */
+    static PreFilter parse(String type, String processorTag, Map<String, Object> config) {
+        Map<String, Object> prefilter = readOptionalMap(type, processorTag, config, "prefilter");
+        if (prefilter == null) {
+            return null;
+        }
+        prefilter = new HashMap<>(prefilter);
+
+        int minLength = readIntProperty(type, processorTag, prefilter, "min_length", 0);
+        double minCapitalizedRatio = readRatio(type, processorTag, prefilter, "min_capitalized_ratio", 0.0);
+        double maxNonLetterRatio = readRatio(type, processorTag, prefilter, "max_non_letter_ratio", 1.0);
+        int minCandidates = readIntProperty(type, processorTag, prefilter, "min_candidates", 0);
+        if (prefilter.isEmpty() == false) {
+            throw newConfigurationException(type, processorTag, "prefilter", "unknown options " + prefilter.keySet());
+        }
+        return new PreFilter(minLength, minCapitalizedRatio, maxNonLetterRatio, minCandidates);
+    }
+
+    private static double readRatio(String type, String processorTag, Map<String, Object> config, String propertyName,
+                                    double defaultValue) {
+        Object value = config.remove(propertyName);
+        if (value == null) {
+            return defaultValue;
+        }
+        double ratio;
+        try {
+            ratio = value instanceof Number ? ((Number) value).doubleValue() : Double.parseDouble(value.toString());
+        } catch (NumberFormatException e) {
+            throw newConfigurationException(type, processorTag, "prefilter." + propertyName, "must be a number");
+        }
+        if (ratio < 0 || ratio > 1) {
+            throw newConfigurationException(type, processorTag, "prefilter." + propertyName, "must be between 0 and 1");
+        }
+        return ratio;
+    }
+
+    /**
+     * @return the given fields if the text is worth running them on, an empty set otherwise
+     */
+    Set<String> filter(CharSequence text, Set<String> fields, OpenNlpStats stats) {
+        int length = text.length();
+        if (length < minLength) {
+            stats.onPreFilterSkip(Reason.MIN_LENGTH);
+            return Collections.emptySet();
+        }
+
+        int tokens = 0;
+        int capitalized = 0;
+        int candidates = 0;
+        int letters = 0;
+        int nonLetters = 0;
+        boolean inToken = false;
+        boolean tokenClassified = false;
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            if (Character.isWhitespace(c)) {
+                inToken = false;
+                continue;
+            }
+            if (inToken == false) {
+                inToken = true;
+                tokenClassified = false;
+                tokens++;
+            }
+            boolean letter = Character.isLetter(c);
+            if (letter) {
+                letters++;
+            } else {
+                nonLetters++;
+            }
+            // quotes or brackets in front of a token do not count
+            if (tokenClassified == false && (letter || Character.isDigit(c))) {
+                tokenClassified = true;
+                if (Character.isUpperCase(c)) {
+                    capitalized++;
+                    candidates++;
+                } else if (letter == false) {
+                    candidates++;
+                }
+            }
+        }
+
+        if (minCapitalizedRatio > 0 && (tokens == 0 || (double) capitalized / tokens < minCapitalizedRatio)) {
+            stats.onPreFilterSkip(Reason.MIN_CAPITALIZED_RATIO);
+            return Collections.emptySet();
+        }
+        int characters = letters + nonLetters;
+        if (maxNonLetterRatio < 1 && (characters == 0 || (double) nonLetters / characters > maxNonLetterRatio)) {
+            stats.onPreFilterSkip(Reason.MAX_NON_LETTER_RATIO);
+            return Collections.emptySet();
+        }
+
+        if (candidates < minCandidates) {
+            stats.onPreFilterSkip(Reason.MIN_CANDIDATES);
+            return Collections.emptySet();
+        }
+        stats.onPreFilterPass();
+        return fields;
+    }
+}
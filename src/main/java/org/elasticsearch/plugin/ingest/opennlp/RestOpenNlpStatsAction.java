@@ -0,0 +1,81 @@
+/*
+ * Copyright [2016] [Alexander Reelsen]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.elasticsearch.plugin.ingest.opennlp;
+
+import org.elasticsearch.client.node.NodeClient;
+import org.elasticsearch.cluster.node.DiscoveryNode;
+import org.elasticsearch.cluster.node.DiscoveryNodes;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.rest.BaseRestHandler;
+import org.elasticsearch.rest.BytesRestResponse;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.rest.RestStatus;
+
+import java.io.IOException;
+import java.util.function.Supplier;
+
+import static org.elasticsearch.rest.RestRequest.Method.GET;
+
+/**
+ * Returns the statistics of the OpenNLP service on the node that receives the request. Other nodes are not asked, the
+ * response only contains a single {@code node} object, so the request has to be sent to every ingest node of interest.
+ */
+public class RestOpenNlpStatsAction extends BaseRestHandler {
+
+    private final Supplier<OpenNlpService> openNlpService;
+    private final Supplier<DiscoveryNodes> nodesInCluster;
+
+    public RestOpenNlpStatsAction(Settings settings, RestController controller, Supplier<OpenNlpService> openNlpService,
+                                  Supplier<DiscoveryNodes> nodesInCluster) {
+        super(settings);
+        this.openNlpService = openNlpService;
+        this.nodesInCluster = nodesInCluster;
+        controller.registerHandler(GET, "/_opennlp/stats", this);
+    }
+
+    @Override
+    public String getName() {
+        return "ingest_opennlp_stats_action";
+    }
+
+    @Override
+    protected RestChannelConsumer prepareRequest(RestRequest request, NodeClient client) throws IOException {
+        return channel -> {
+            XContentBuilder builder = channel.newBuilder();
+            DiscoveryNodes nodes = nodesInCluster.get();
+            // not known before the node has joined a cluster state
+            DiscoveryNode localNode = nodes == null ? null : nodes.getLocalNode();
+            builder.startObject();
+            builder.startObject("node");
+            if (localNode != null) {
+                builder.field("id", localNode.getId());
+                builder.field("name", localNode.getName());
+            }
+            OpenNlpService service = openNlpService.get();
+            if (service != null) {
+                service.statsToXContent(builder, ToXContent.EMPTY_PARAMS);
+            }
+            builder.endObject();
+            builder.endObject();
+            channel.sendResponse(new BytesRestResponse(RestStatus.OK, builder));
+        };
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright [2016] [Alexander Reelsen]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.elasticsearch.plugin.ingest.opennlp;
+
+import org.elasticsearch.common.cache.Cache;
+import org.elasticsearch.common.cache.CacheBuilder;
+import org.elasticsearch.common.hash.MurmurHash3;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+
+/**
+ * A node level cache of extraction results, keyed by a 128 bit hash of the content and the generation of the model
+ * that produced the result. Reloading a model gives it a new generation, so stale results are never returned.
+ *
+ * Cached values must not be modified, callers have to copy them before handing them out.
+ */
+final class ResultCache {
+
+    // rough per entry overhead of key, value wrapper and cache bookkeeping
+    private static final long ENTRY_OVERHEAD = 128;
+
+    private final Cache<Key, Object> cache;
+
+    private ResultCache(long maximumWeight, TimeValue expireAfterAccess) {
+        CacheBuilder<Key, Object> builder = CacheBuilder.<Key, Object>builder()
+                .setMaximumWeight(maximumWeight)
+                .weigher((key, value) -> ENTRY_OVERHEAD + weigh(value));
+        if (expireAfterAccess.nanos() > 0) {
+            builder.setExpireAfterAccess(expireAfterAccess);
+        }
+        this.cache = builder.build();
+    }
+
+    /**
+     * Creates the cache configured by the {@code ingest.opennlp.cache.*} settings, or returns null if it is disabled
+     */
+    static ResultCache create(Settings settings) {
+        if (IngestOpenNlpPlugin.CACHE_ENABLED_SETTING.get(settings) == false) {
+            return null;
+        }
+        return new ResultCache(IngestOpenNlpPlugin.CACHE_SIZE_SETTING.get(settings).getBytes(),
+                IngestOpenNlpPlugin.CACHE_EXPIRE_SETTING.get(settings));
+    }
+
+    static ContentHash hash(String content) {
+        byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+        MurmurHash3.Hash128 hash = MurmurHash3.hash128(bytes, 0, bytes.length, 0, new MurmurHash3.Hash128());
+        return new ContentHash(hash.h1, hash.h2, bytes.length);
+    }
+
+    @SuppressWarnings("unchecked")
+    <T> T get(long generation, ContentHash hash) {
+        return (T) cache.get(new Key(generation, hash));
+    }
+
+    void put(long generation, ContentHash hash, Object value) {
+        cache.put(new Key(generation, hash), value);
+    }
+
+    void invalidateAll() {
+        cache.invalidateAll();
+    }
+
+    Cache.CacheStats stats() {
+        return cache.stats();
+    }
+
+    int count() {
+        return cache.count();
+    }
+
+    long weight() {
+        return cache.weight();
+    }
+
+    private static long weigh(Object value) {
+        if (value instanceof String) {
+            return 40 + 2 * ((String) value).length();
+        }
+        long weight = 0;
+        if (value instanceof Collection) {
+            for (Object element : (Collection<?>) value) {
+                weight += 32 + weigh(element);
+            }
+        }
+        return weight;
+    }
+
+    static final class ContentHash {
+
+        private final long h1;
+        private final long h2;
+        private final int length;
+
+        ContentHash(long h1, long h2, int length) {
+            this.h1 = h1;
+            this.h2 = h2;
+            this.length = length;
+        }
+    }
+
+    private static final class Key {
+
+        private final long generation;
+        private final ContentHash hash;
+
+        Key(long generation, ContentHash hash) {
+            this.generation = generation;
+            this.hash = hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Key other = (Key) o;
+            return generation == other.generation && hash.h1 == other.hash.h1 && hash.h2 == other.hash.h2
+                    && hash.length == other.hash.length;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * Long.hashCode(generation) + Long.hashCode(hash.h1);
+        }
+    }
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright [2016] [Alexander Reelsen]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.elasticsearch.plugin.ingest.opennlp;
+
+import org.elasticsearch.common.settings.Settings;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Remembers the entities a model found in a single sentence, so that boilerplate like footers, signatures or navigation
+ * text is only decoded once. The sentences are decoded without the adaptive data of the sentences before them, otherwise
+ * the entities of a sentence would depend on the document it was first seen in.
+ *
+ * Keys are 64 bit hashes of the whitespace normalized sentence mixed with the model generation, values are the found
+ * entities. Next to the key a second, independent hash including the normalized length is stored and compared on
+ * lookup, so two sentences sharing a key do not get each other's entities. To keep the footprint small there are no
+ * entry objects, every segment is a fixed size open addressing table of primitives, and sentences without entities share
+ * a single empty array. When all slots a key may live in are taken, the first of them is overwritten.
+ */
+final class SentenceCache {
+
+    static final String[] NO_ENTITIES = new String[0];
+
+    private static final int SEGMENTS = 16;
+    private static final int PROBES = 4;
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    SentenceCache(int size) {
+        int segmentSize = Integer.highestOneBit(Math.max(PROBES, size / SEGMENTS - 1) << 1);
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(segmentSize);
+        }
+    }
+
+    /**
+     * Creates the cache configured by the {@code ingest.opennlp.sentence_cache.*} settings, or returns null if it is disabled
+     */
+    static SentenceCache create(Settings settings) {
+        if (IngestOpenNlpPlugin.SENTENCE_CACHE_ENABLED_SETTING.get(settings) == false) {
+            return null;
+        }
+        return new SentenceCache(IngestOpenNlpPlugin.SENTENCE_CACHE_SIZE_SETTING.get(settings));
+    }
+
+    /**
+     * Hashes the sentence with leading, trailing and repeated whitespace removed, without copying it
+     */
+    static long hash(CharSequence sentence) {
+        return hash(sentence, 0, sentence.length());
+    }
+
+    /**
+     * Like {@link #hash(CharSequence)}, for the sentence between {@code from} and {@code to} of a larger text
+     */
+    static long hash(CharSequence text, int from, int to) {
+        long hash = 0xcbf29ce484222325L;
+        boolean pendingSpace = false;
+        boolean started = false;
+        for (int i = from; i < to; i++) {
+            char c = text.charAt(i);
+            if (Character.isWhitespace(c)) {
+                pendingSpace = started;
+                continue;
+            }
+            if (pendingSpace) {
+                hash = (hash ^ ' ') * 0x100000001b3L;
+                pendingSpace = false;
+            }
+            hash = (hash ^ c) * 0x100000001b3L;
+            started = true;
+        }
+        return mix(hash);
+    }
+
+    /**
+     * The second hash of the sentence between {@code from} and {@code to}, compared on lookup to tell apart sentences
+     * which share a key. The normalized length is kept in the upper half.
+     */
+    static long check(CharSequence text, int from, int to) {
+        int hash = 0;
+        int length = 0;
+        boolean pendingSpace = false;
+        boolean started = false;
+        for (int i = from; i < to; i++) {
+            char c = text.charAt(i);
+            if (Character.isWhitespace(c)) {
+                pendingSpace = started;
+                continue;
+            }
+            if (pendingSpace) {
+                hash = 31 * hash + ' ';
+                length++;
+                pendingSpace = false;
+            }
+            hash = 31 * hash + c;
+            length++;
+            started = true;
+        }
+        return ((long) length << 32) | (hash & 0xffffffffL);
+    }
+
+    static long check(CharSequence sentence) {
+        return check(sentence, 0, sentence.length());
+    }
+
+    static long key(long sentenceHash, long generation) {
+        return mix(sentenceHash ^ (generation * 0x9e3779b97f4a7c15L));
+    }
+
+    String[] get(long key, long check) {
+        String[] entities = segment(key).get(key, check);
+        if (entities == null) {
+            misses.increment();
+        } else {
+            hits.increment();
+        }
+        return entities;
+    }
+
+    void put(long key, long check, String[] entities) {
+        if (segment(key).put(key, check, entities.length == 0 ? NO_ENTITIES : entities)) {
+            evictions.increment();
+        }
+    }
+
+    void clear() {
+        for (Segment segment : segments) {
+            segment.clear();
+        }
+    }
+
+    long hits() {
+        return hits.sum();
+    }
+
+    long misses() {
+        return misses.sum();
+    }
+
+    long evictions() {
+        return evictions.sum();
+    }
+
+    private Segment segment(long key) {
+        return segments[(int) (key >>> 60) & (SEGMENTS - 1)];
+    }
+
+    // murmur3 finalizer, spreads the bits of FNV output which are weak in the low positions
+    private static long mix(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+
+    private static final class Segment {
+
+        private final long[] keys;
+        private final long[] checks;
+        private final String[][] values;
+        private final int mask;
+
+        Segment(int size) {
+            this.keys = new long[size];
+            this.checks = new long[size];
+            this.values = new String[size][];
+            this.mask = size - 1;
+        }
+
+        synchronized String[] get(long key, long check) {
+            int slot = (int) key & mask;
+            for (int i = 0; i < PROBES; i++) {
+                int idx = (slot + i) & mask;
+                if (values[idx] != null && keys[idx] == key && checks[idx] == check) {
+                    return values[idx];
+                }
+            }
+            return null;
+        }
+
+        /**
+         * @return true if another entry had to be overwritten
+         */
+        synchronized boolean put(long key, long check, String[] entities) {
+            int slot = (int) key & mask;
+            for (int i = 0; i < PROBES; i++) {
+                int idx = (slot + i) & mask;
+                if (values[idx] == null || keys[idx] == key) {
+                    keys[idx] = key;
+                    checks[idx] = check;
+                    values[idx] = entities;
+                    return false;
+                }
+            }
+            keys[slot] = key;
+            checks[slot] = check;
+            values[slot] = entities;
+            return true;
+        }
+
+        synchronized void clear() {
+            for (int i = 0; i < values.length; i++) {
+                values[i] = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright [2016] [Alexander Reelsen]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.elasticsearch.plugin.ingest.opennlp;
+
+import org.apache.logging.log4j.Logger;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Logs the documents the opennlp processor took longer than a threshold for, like the indexing slow log of an index
+ * does, together with the time spent in each stage of the analysis. The text is left out unless configured otherwise.
+ *
+ * The stages are timed for every document while the slow log is enabled. That only adds a few fields to the timings
+ * the statistics take anyway, the log line is built for documents above a threshold only.
+ */
+final class SlowLog {
+
+    static final String LOGGER_NAME = "ingest.opennlp.slowlog";
+
+    private final long warnNanos;
+    private final long infoNanos;
+    private final long debugNanos;
+    private final int sourceChars;
+    private final Logger logger;
+
+    SlowLog(TimeValue warn, TimeValue info, TimeValue debug, int sourceChars, Logger logger) {
+        this.warnNanos = warn.nanos();
+        this.infoNanos = info.nanos();
+        this.debugNanos = debug.nanos();
+        this.sourceChars = sourceChars;
+        this.logger = logger;
+    }
+
+    /**
+     * @return the slow log, or null if no threshold is set
+     */
+    static SlowLog create(Settings settings) {
+        TimeValue warn = IngestOpenNlpPlugin.SLOWLOG_THRESHOLD_WARN_SETTING.get(settings);
+        TimeValue info = IngestOpenNlpPlugin.SLOWLOG_THRESHOLD_INFO_SETTING.get(settings);
+        TimeValue debug = IngestOpenNlpPlugin.SLOWLOG_THRESHOLD_DEBUG_SETTING.get(settings);
+        if (warn.nanos() < 0 && info.nanos() < 0 && debug.nanos() < 0) {
+            return null;
+        }
+        return new SlowLog(warn, info, debug, IngestOpenNlpPlugin.SLOWLOG_SOURCE_SETTING.get(settings),
+                Loggers.getLogger(LOGGER_NAME, settings));
+    }
+
+    /**
+     * @return the number of characters of the text to log, 0 if the text is left out
+     */
+    int sourceChars() {
+        return sourceChars;
+    }
+
+    /**
+     * Logs the document if it took longer than one of the thresholds, at the level of the highest threshold exceeded
+     *
+     * @param source the analyzed text, which is truncated to the configured length, or null if it is not known
+     */
+    void log(String tag, String index, String id, String source, boolean truncated, Timings timings, long tookNanos) {
+        if (warnNanos >= 0 && tookNanos > warnNanos) {
+            logger.warn("{}", message(tag, index, id, source, truncated, timings, tookNanos));
+        } else if (infoNanos >= 0 && tookNanos > infoNanos) {
+            logger.info("{}", message(tag, index, id, source, truncated, timings, tookNanos));
+        } else if (debugNanos >= 0 && tookNanos > debugNanos && logger.isDebugEnabled()) {
+            logger.debug("{}", message(tag, index, id, source, truncated, timings, tookNanos));
+        }
+    }
+
+    String message(String tag, String index, String id, String source, boolean truncated, Timings timings, long tookNanos) {
+        StringBuilder sb = new StringBuilder();
+        sb.append('[').append(index).append("][").append(id).append("] ");
+        sb.append("took[").append(TimeValue.timeValueNanos(tookNanos)).append("], ");
+        sb.append("took_millis[").append(TimeUnit.NANOSECONDS.toMillis(tookNanos)).append("], ");
+        sb.append("tag[").append(tag).append("], ");
+        sb.append("length[").append(timings.length).append("], ");
+        sb.append("sentences[").append(timings.sentences).append("], ");
+        sb.append("tokens[").append(timings.tokens).append("], ");
+        sb.append("language[").append(TimeValue.timeValueNanos(timings.languageNanos)).append("], ");
+        sb.append("sentence_detection[").append(TimeValue.timeValueNanos(timings.sentenceDetectionNanos)).append("], ");
+        sb.append("tokenization[").append(TimeValue.timeValueNanos(timings.tokenizationNanos)).append("], ");
+        sb.append("models[");
+        boolean first = true;
+        for (Map.Entry<String, Long> model : timings.modelNanos.entrySet()) {
+            if (first == false) {
+                sb.append(", ");
+            }
+            sb.append(model.getKey()).append('[').append(TimeValue.timeValueNanos(model.getValue())).append(']');
+            first = false;
+        }
+        sb.append("], ");
+        sb.append("sentiment[").append(TimeValue.timeValueNanos(timings.sentimentNanos)).append("], ");
+        sb.append("truncated[").append(truncated).append(']');
+        if (sourceChars > 0 && source != null) {
+            String text = source.length() > sourceChars ? source.substring(0, sourceChars) : source;
+            // one document per line, whatever the text looks like
+            sb.append(", source[").append(text.replace('\n', ' ').replace('\r', ' ')).append(']');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * The time spent per stage for a single document. Only ever used by the thread analyzing the document.
+     */
+    static final class Timings {
+
+        long length;
+        long sentences;
+        long tokens;
+        long languageNanos;
+        long sentenceDetectionNanos;
+        long tokenizationNanos;
+        long sentimentNanos;
+        final Map<String, Long> modelNanos = new TreeMap<>();
+
+        void onDocument(int length, int sentences, int tokens, long tokenizationNanos) {
+            this.length += length;
+            this.sentences += sentences;
+            this.tokens += tokens;
+            this.tokenizationNanos += tokenizationNanos;
+        }
+
+        void onModel(String model, long nanos) {
+            modelNanos.merge(model, nanos, Long::sum);
+        }
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright [2016] [Alexander Reelsen]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.elasticsearch.plugin.ingest.opennlp;
+
+import java.util.Arrays;
+
+/**
+ * Token offsets of a single sentence, reused across sentences and documents of the same thread.
+ *
+ * Tokenizes exactly like {@link opennlp.tools.tokenize.SimpleTokenizer}, but writes start and end offsets into the
+ * original text instead of creating a span and a substring per token. Only the name finders need the tokens as strings.
+ */
+final class TokenBuffer {
+
+    private static final int INITIAL_CAPACITY = 256;
+    // a document without sentence model is a single sentence, do not keep its buffer around forever
+    private static final int MAX_RETAINED_CAPACITY = 64 * 1024;
+
+    private static final ThreadLocal<TokenBuffer> BUFFERS = ThreadLocal.withInitial(TokenBuffer::new);
+
+    private static final int WHITESPACE = 0;
+    private static final int ALPHABETIC = 1;
+    private static final int NUMERIC = 2;
+    private static final int OTHER = 3;
+
+    private int[] starts = new int[INITIAL_CAPACITY];
+    private int[] ends = new int[INITIAL_CAPACITY];
+    private int size;
+
+    /**
+     * @return the buffer of the current thread
+     */
+    static TokenBuffer get() {
+        return BUFFERS.get();
+    }
+
+    /**
+     * Replaces the content of the buffer with the tokens between {@code from} and {@code to}
+     *
+     * @return the number of tokens
+     */
+    int tokenize(CharSequence text, int from, int to) {
+        size = 0;
+        int state = WHITESPACE;
+        int type = WHITESPACE;
+        int start = -1;
+        char previous = 0;
+        for (int i = from; i < to; i++) {
+            char c = text.charAt(i);
+            type = type(c);
+            if (state == WHITESPACE) {
+                if (type != WHITESPACE) {
+                    start = i;
+                }
+            } else if (type != state || (type == OTHER && c != previous)) {
+                // runs of the same punctuation like "..." stay a single token
+                add(start, i);
+                if (type != WHITESPACE) {
+                    start = i;
+                }
+            }
+            state = type;
+            previous = c;
+        }
+        if (type != WHITESPACE) {
+            add(start, to);
+        }
+        return size;
+    }
+
+    private static int type(char c) {
+        if (Character.isWhitespace(c) || Character.getType(c) == Character.SPACE_SEPARATOR) {
+            return WHITESPACE;
+        } else if (Character.isLetter(c)) {
+            return ALPHABETIC;
+        } else if (Character.isDigit(c)) {
+            return NUMERIC;
+        }
+        return OTHER;
+    }
+
+    private void add(int start, int end) {
+        if (size == starts.length) {
+            starts = Arrays.copyOf(starts, size << 1);
+            ends = Arrays.copyOf(ends, size << 1);
+        }
+        starts[size] = start;
+        ends[size] = end;
+        size++;
+    }
+
+    int size() {
+        return size;
+    }
+
+    int start(int token) {
+        return starts[token];
+    }
+
+    int end(int token) {
+        return ends[token];
+    }
+
+    /**
+     * @return the tokens as strings, as the name finders expect them
+     */
+    String[] toStrings(String text) {
+        String[] tokens = new String[size];
+        for (int i = 0; i < size; i++) {
+            tokens[i] = text.substring(starts[i], ends[i]);
+        }
+        return tokens;
+    }
+
+    /**
+     * Appends the tokens joined by a single space, like {@link opennlp.tools.util.Span#spansToStrings} does
+     */
+    void appendJoined(CharSequence text, StringBuilder builder) {
+        for (int i = 0; i < size; i++) {
+            if (i > 0) {
+                builder.append(' ');
+            }
+            builder.append(text, starts[i], ends[i]);
+        }
+    }
+
+    /**
+     * Drops oversized arrays once a batch is done
+     */
+    void trim() {
+        size = 0;
+        if (starts.length > MAX_RETAINED_CAPACITY) {
+            starts = new int[INITIAL_CAPACITY];
+            ends = new int[INITIAL_CAPACITY];
+        }
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright [2016] [Alexander Reelsen]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.elasticsearch.plugin.ingest.opennlp;
+
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs a sample corpus through all loaded models before the first document shows up, so the decoders, feature
+ * generators and the tokenizer are compiled by the JIT instead of slowing down the first bulk requests after a restart.
+ * It stops after the configured number of documents or once the time is up, whichever comes first.
+ */
+final class WarmUp {
+
+    private static final String BUNDLED_CORPUS = "warmup.txt";
+
+    private final int documents;
+    private final TimeValue maxTime;
+    private final String file;
+
+    WarmUp(int documents, TimeValue maxTime, String file) {
+        this.documents = documents;
+        this.maxTime = maxTime;
+        this.file = file;
+    }
+
+    /**
+     * @return the warm up, or null if it is disabled
+     */
+    static WarmUp create(Settings settings) {
+        int documents = IngestOpenNlpPlugin.WARMUP_DOCUMENTS_SETTING.get(settings);
+        if (documents == 0) {
+            return null;
+        }
+        return new WarmUp(documents, IngestOpenNlpPlugin.WARMUP_MAX_TIME_SETTING.get(settings),
+                IngestOpenNlpPlugin.WARMUP_FILE_SETTING.get(settings));
+    }
+
+    /**
+     * @return the documents of the configured file, or of the bundled corpus if none is configured, one per line
+     */
+    List<String> corpus(Path configDirectory) throws IOException {
+        try (InputStream is = file.isEmpty() ? WarmUp.class.getResourceAsStream(BUNDLED_CORPUS)
+                : Files.newInputStream(configDirectory.resolve(file))) {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8));
+            List<String> corpus = new ArrayList<>();
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                if (line.trim().isEmpty() == false) {
+                    corpus.add(line);
+                }
+            }
+            return corpus;
+        }
+    }
+
+    /**
+     * Analyzes the corpus over and over on several threads, so the decoder pools are filled as well
+     *
+     * @return the number of analyzed documents
+     */
+    int run(OpenNlpService service, List<String> corpus, int threads, Settings settings) {
+        if (corpus.isEmpty()) {
+            return 0;
+        }
+        OpenNlpService.Plan plan = service.plan(service.getModels());
+        boolean sentiment = service.miscGroupExists();
+        Deadline deadline = Deadline.after(maxTime.nanos());
+        AtomicInteger next = new AtomicInteger();
+        AtomicInteger done = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(threads, EsExecutors.daemonThreadFactory(settings, "opennlp_warmup"));
+        try {
+            List<CompletableFuture<Void>> futures = new ArrayList<>(threads);
+            for (int t = 0; t < threads; t++) {
+                futures.add(CompletableFuture.runAsync(() -> {
+                    for (int i = next.getAndIncrement(); i < documents && deadline.check() == false; i = next.getAndIncrement()) {
+                        String document = corpus.get(i % corpus.size());
+                        service.analyze(document, plan, 0, 0);
+                        if (sentiment) {
+                            service.getSentiment(document);
+                        }
+                        done.incrementAndGet();
+                    }
+                }, executor));
+            }
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[futures.size()])).join();
+        } finally {
+            executor.shutdown();
+        }
+        return done.get();
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright [2016] [Alexander Reelsen]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.elasticsearch.plugin.ingest.opennlp;
+
+import opennlp.tools.ml.maxent.GISModel;
+import opennlp.tools.ml.model.Context;
+import opennlp.tools.namefind.NameFinderME;
+import opennlp.tools.namefind.TokenNameFinderModel;
+import opennlp.tools.tokenize.SimpleTokenizer;
+import opennlp.tools.util.Span;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.test.ESTestCase;
+
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.notNullValue;
+
+public class CompactMaxentModelTests extends ESTestCase {
+
+    private static final String[] SENTENCES = new String[] {
+            "Kobe Bryant was one of the best basketball players of all times.",
+            "Not even Michael Jordan has ever scored 81 points in one game.",
+            "Angela Merkel met Emmanuel Macron in Paris last week to discuss the budget.",
+            "Munich is really an awesome city, but New York is as well.",
+            "this sentence is all lower case and does not mention anybody at all.",
+    };
+
+    public void testThatCompactModelFindsIdenticalSpans() throws Exception {
+        Path path = getDataPath("/models/en-ner-persons.bin");
+        TokenNameFinderModel original;
+        CompactTokenNameFinderModel compact;
+        try (InputStream is = Files.newInputStream(path)) {
+            original = new TokenNameFinderModel(is);
+        }
+        try (InputStream is = Files.newInputStream(path)) {
+            compact = new CompactTokenNameFinderModel(is);
+        }
+        assertThat(compact.isCompact(), is(true));
+        assertThat(compact.ramBytesUsed(), greaterThan(0L));
+
+        NameFinderME originalFinder = new NameFinderME(original);
+        NameFinderME compactFinder = new NameFinderME(compact);
+        for (int i = 0; i < 100; i++) {
+            String sentence = randomBoolean() ? randomFrom(SENTENCES) : randomSentence();
+            String[] tokens = SimpleTokenizer.INSTANCE.tokenize(sentence);
+            Span[] expected = originalFinder.find(tokens);
+            Span[] actual = compactFinder.find(tokens);
+            assertThat(sentence, Arrays.asList(actual), equalTo(Arrays.asList(expected)));
+            originalFinder.clearAdaptiveData();
+            compactFinder.clearAdaptiveData();
+        }
+    }
+
+    public void testThatServiceUsesCompactModels() throws Exception {
+        Settings settings = Settings.builder()
+                .put("ingest.opennlp.model.file.names", "en-ner-persons.bin")
+                .put("ingest.opennlp.tokenizer.file.sentences", "en-sent.bin")
+                .put("ingest.opennlp.memory.compact", true)
+                .build();
+        OpenNlpService service = new OpenNlpService(getDataPath("/models/en-ner-persons.bin").getParent(), settings).start();
+
+        assertThat(service.getNameFinderModel("names").current().model, instanceOf(CompactTokenNameFinderModel.class));
+        Map<String, Set<String>> entities = service.analyze("Kobe Bryant was one of the best basketball players of all times. " +
+                "Not even Michael Jordan has ever scored 81 points in one game.", service.getModels());
+        assertThat(entities.get("names"), containsInAnyOrder("Kobe Bryant", "Michael Jordan"));
+    }
+
+    public void testThatDataStructuresAreRebuilt() {
+        GISModel original = smallModel();
+        CompactMaxentModel compact = CompactMaxentModel.of(original);
+        assertThat(compact, is(notNullValue()));
+
+        Object[] data = compact.getDataStructures();
+        Map<?, ?> features = (Map<?, ?>) data[1];
+        assertThat(features.keySet(), containsInAnyOrder("w=kobe", "w=bryant", "prev=kobe"));
+        Context context = (Context) features.get("prev=kobe");
+        assertThat(context.getOutcomes(), equalTo(new int[] { 1, 2 }));
+        assertThat(context.getParameters(), equalTo(new double[] { 0.5, 1.5 }));
+        assertThat((String[]) data[2], equalTo(new String[] { "other", "person-start", "person-cont" }));
+        assertThat(data[3], equalTo(1));
+        assertThat(data[4], equalTo(0.0));
+
+        // the rebuilt structures make up the same model again
+        Context[] params = (Context[]) data[0];
+        String[] predicates = new String[params.length];
+        for (Map.Entry<?, ?> entry : features.entrySet()) {
+            predicates[Arrays.asList(params).indexOf(entry.getValue())] = (String) entry.getKey();
+        }
+        GISModel rebuilt = new GISModel(params, predicates, (String[]) data[2], 1, 0.0);
+        String[] sample = new String[] { "w=bryant", "prev=kobe" };
+        assertThat(rebuilt.eval(sample), equalTo(original.eval(sample)));
+    }
+
+    public void testThatUnknownFeaturesAreIgnored() {
+        GISModel original = smallModel();
+        CompactMaxentModel compact = CompactMaxentModel.of(original);
+        String[] known = new String[] { "w=kobe", "prev=kobe" };
+        String[] withUnknown = new String[] { "w=kobe", "w=unknown", "prev=kobe", "w=kobe " };
+        assertThat(compact.eval(withUnknown), equalTo(compact.eval(known)));
+        assertThat(compact.eval(withUnknown), equalTo(original.eval(withUnknown)));
+    }
+
+    private static GISModel smallModel() {
+        Context[] params = new Context[] {
+                new Context(new int[] { 0, 1 }, new double[] { -0.5, 2.0 }),
+                new Context(new int[] { 2 }, new double[] { 1.0 }),
+                new Context(new int[] { 1, 2 }, new double[] { 0.5, 1.5 }),
+        };
+        return new GISModel(params, new String[] { "w=kobe", "w=bryant", "prev=kobe" },
+                new String[] { "other", "person-start", "person-cont" }, 1, 0.0);
+    }
+
+    private static String randomSentence() {
+        String[] words = new String[] { "Kobe", "Bryant", "met", "Michael", "Jordan", "in", "Munich", "yesterday", ".", ",",
+                "the", "President", "Obama", "said", "Mr", "Smith", "and", "New", "York", "was" };
+        StringBuilder builder = new StringBuilder();
+        int length = randomIntBetween(1, 30);
+        for (int i = 0; i < length; i++) {
+            builder.append(randomFrom(words)).append(' ');
+        }
+        return builder.toString();
+    }
+}
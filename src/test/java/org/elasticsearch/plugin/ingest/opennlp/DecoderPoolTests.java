@@ -0,0 +1,55 @@
+/*
+ * Copyright [2016] [Alexander Reelsen]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.elasticsearch.plugin.ingest.opennlp;
+
+import org.elasticsearch.test.ESTestCase;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
+
+public class DecoderPoolTests extends ESTestCase {
+
+    public void testThatReleasedDecodersAreReused() {
+        AtomicInteger resets = new AtomicInteger();
+        DecoderPool<Object> pool = new DecoderPool<>(2, Object::new, decoder -> resets.incrementAndGet());
+
+        Object first = pool.acquire();
+        pool.release(first);
+        assertThat(pool.acquire(), sameInstance(first));
+
+        assertThat(pool.created(), is(1L));
+        assertThat(pool.reused(), is(1L));
+        assertThat(resets.get(), is(1));
+    }
+
+    public void testThatPoolIsBounded() {
+        DecoderPool<Object> pool = new DecoderPool<>(1, Object::new);
+
+        Object first = pool.acquire();
+        Object second = pool.acquire();
+        assertThat(first, not(sameInstance(second)));
+
+        pool.release(first);
+        pool.release(second);
+        assertThat(pool.idle(), is(1));
+        assertThat(pool.created(), is(2L));
+    }
+}
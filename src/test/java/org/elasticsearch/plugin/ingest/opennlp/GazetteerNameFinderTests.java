@@ -0,0 +1,117 @@
+/*
+ * Copyright [2016] [Alexander Reelsen]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.elasticsearch.plugin.ingest.opennlp;
+
+import opennlp.tools.tokenize.SimpleTokenizer;
+import opennlp.tools.util.Span;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.set.Sets;
+import org.elasticsearch.test.ESTestCase;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+
+import static org.hamcrest.Matchers.arrayContaining;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.emptyArray;
+import static org.hamcrest.Matchers.is;
+
+public class GazetteerNameFinderTests extends ESTestCase {
+
+    public void testThatEntriesAreFoundInOnePass() {
+        GazetteerNameFinder finder = finder("New York", "Munich", "San Francisco");
+
+        assertThat(find(finder, "Munich is really an awesome city, but New York is as well."), arrayContaining("Munich", "New York"));
+        assertThat(find(finder, "New Jersey is not in the dictionary."), emptyArray());
+        assertThat(find(finder, "new york is case sensitive"), emptyArray());
+        assertThat(finder.entries(), is(3));
+    }
+
+    public void testThatLongestMatchWins() {
+        GazetteerNameFinder finder = finder("New York", "New York City", "York");
+
+        assertThat(find(finder, "I live in New York City."), arrayContaining("New York City"));
+        assertThat(find(finder, "I live in New York."), arrayContaining("New York"));
+        assertThat(find(finder, "I live in York."), arrayContaining("York"));
+    }
+
+    public void testThatMatchesAfterFailedPrefixesAreFound() {
+        GazetteerNameFinder finder = finder("Bank of America", "America Online", "of Austria");
+
+        // the automaton has to fall back from "Bank of" to "of Austria" without going back in the token stream
+        assertThat(find(finder, "Bank of Austria and America Online"), arrayContaining("of Austria", "America Online"));
+        // leftmost longest, the overlapping "America Online" is dropped
+        assertThat(find(finder, "Bank of America Online"), arrayContaining("Bank of America"));
+        assertThat(find(finder, "the America Online service"), arrayContaining("America Online"));
+    }
+
+    public void testThatShorterMatchesEndingTogetherAreFound() {
+        GazetteerNameFinder finder = finder("X A", "A B C", "B C");
+
+        assertThat(find(finder, "X A B C"), arrayContaining("X A", "B C"));
+    }
+
+    public void testThatLargeDictionariesWork() {
+        GazetteerNameFinder.Builder builder = new GazetteerNameFinder.Builder("products");
+        int entries = randomIntBetween(10000, 50000);
+        for (int i = 0; i < entries; i++) {
+            builder.add(new String[] { "Product", Integer.toString(i) });
+        }
+        GazetteerNameFinder finder = builder.build();
+
+        assertThat(finder.entries(), is(entries));
+        // one token for "Product" and one per number
+        assertThat(finder.tokens(), is(entries + 1));
+        int product = randomIntBetween(0, entries - 1);
+        assertThat(find(finder, "We sold Product " + product + " yesterday"), arrayContaining("Product " + product));
+        assertThat(find(finder, "We sold Product " + entries + " yesterday"), emptyArray());
+    }
+
+    public void testThatServiceUsesDictionaries() throws Exception {
+        Path config = createTempDir();
+        Files.write(config.resolve("cities.txt"), Arrays.asList("# cities", "Munich", "", "New York"), StandardCharsets.UTF_8);
+        Settings settings = Settings.builder()
+                .put("ingest.opennlp.dictionary.file.cities", "cities.txt")
+                .build();
+        OpenNlpService service = new OpenNlpService(config, settings).start();
+
+        assertThat(service.getModels(), containsInAnyOrder("cities"));
+        Map<String, Set<String>> entities = service.analyze("Munich is really an awesome city, but New York is as well.",
+                Sets.newHashSet("cities"));
+        assertThat(entities.get("cities"), containsInAnyOrder("Munich", "New York"));
+        assertThat(service.getNameFinderModel("cities").isLoaded(), is(true));
+    }
+
+    private static GazetteerNameFinder finder(String... entries) {
+        GazetteerNameFinder.Builder builder = new GazetteerNameFinder.Builder("test");
+        for (String entry : entries) {
+            builder.add(SimpleTokenizer.INSTANCE.tokenize(entry));
+        }
+        return builder.build();
+    }
+
+    private static String[] find(GazetteerNameFinder finder, String text) {
+        String[] tokens = SimpleTokenizer.INSTANCE.tokenize(text);
+        Span[] spans = finder.find(tokens);
+        return Span.spansToStrings(spans, tokens);
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright [2016] [Alexander Reelsen]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.elasticsearch.plugin.ingest.opennlp;
+
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.set.Sets;
+import org.elasticsearch.test.ESTestCase;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.is;
+
+public class LatencyHistogramTests extends ESTestCase {
+
+    public void testThatPercentilesAreBucketUpperBounds() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertThat(histogram.percentileMicros(99), is(0L));
+
+        for (int i = 0; i < 90; i++) {
+            histogram.record(TimeUnit.MICROSECONDS.toNanos(100));
+        }
+        for (int i = 0; i < 10; i++) {
+            histogram.record(TimeUnit.MILLISECONDS.toNanos(10));
+        }
+
+        assertThat(histogram.count(), is(100L));
+        // 100 micros falls into [64, 127], 10 millis into [8192, 16383]
+        assertThat(histogram.percentileMicros(50), is(127L));
+        assertThat(histogram.percentileMicros(90), is(127L));
+        assertThat(histogram.percentileMicros(99), is(16383L));
+    }
+
+    public void testThatServiceRecordsStats() throws Exception {
+        Settings settings = Settings.builder()
+                .put("ingest.opennlp.model.file.names", "en-ner-persons.bin")
+                .put("ingest.opennlp.model.file.locations", "en-ner-locations.bin")
+                .put("ingest.opennlp.tokenizer.file.sentences", "en-sent.bin")
+                .build();
+        OpenNlpService service = new OpenNlpService(getDataPath("/models/en-ner-persons.bin").getParent(), settings).start();
+
+        String first = "Kobe Bryant was one of the best basketball players of all time. Munich is really an awesome city.";
+        String second = "Munich is really an awesome city, but New York is as well.";
+        service.analyze(first, Sets.newHashSet("names", "locations"));
+        service.find(second, "locations");
+
+        assertThat(service.getStats().documents(), is(2L));
+        assertThat(service.getStats().model("names").count(), is(1L));
+        assertThat(service.getStats().model("locations").count(), is(2L));
+        assertThat(service.getStats().modelDocuments("names"), is(1L));
+        assertThat(service.getStats().modelCharacters("names"), is((long) first.length()));
+        assertThat(service.getStats().modelDocuments("locations"), is(2L));
+        assertThat(service.getStats().modelCharacters("locations"), is((long) (first.length() + second.length())));
+    }
+}
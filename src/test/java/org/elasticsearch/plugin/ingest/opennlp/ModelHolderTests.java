@@ -0,0 +1,138 @@
+/*
+ * Copyright [2016] [Alexander Reelsen]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.elasticsearch.plugin.ingest.opennlp;
+
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.common.CheckedFunction;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.test.ESTestCase;
+import org.elasticsearch.watcher.FileWatcher;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.sameInstance;
+
+public class ModelHolderTests extends ESTestCase {
+
+    public void testThatReloadSwapsModel() {
+        AtomicInteger version = new AtomicInteger();
+        ModelHolder<Integer, Object> holder = newHolder(path -> version.incrementAndGet());
+
+        ModelHolder.Loaded<Integer, Object> inFlight = holder.get();
+        assertThat(inFlight.model, is(1));
+
+        assertThat(holder.reload(), is(true));
+        assertThat(holder.get().model, is(2));
+        // documents that started before the reload keep their model and decoders
+        assertThat(inFlight.model, is(1));
+        assertThat(holder.loads(), is(2));
+    }
+
+    public void testThatFailedReloadKeepsPreviousModel() {
+        AtomicBoolean fail = new AtomicBoolean(false);
+        ModelHolder<String, Object> holder = newHolder(path -> {
+            if (fail.get()) {
+                throw new IOException("corrupt model");
+            }
+            return "model";
+        });
+
+        ModelHolder.Loaded<String, Object> loaded = holder.get();
+        fail.set(true);
+        assertThat(holder.reload(), is(false));
+        assertThat(holder.get(), sameInstance(loaded));
+    }
+
+    public void testThatReloadRetriesFailedModelOnNextAccess() {
+        AtomicBoolean fail = new AtomicBoolean(true);
+        ModelHolder<String, Object> holder = newHolder(path -> {
+            if (fail.get()) {
+                throw new IOException("corrupt model");
+            }
+            return "model";
+        });
+
+        expectThrows(ElasticsearchException.class, holder::get);
+        expectThrows(ElasticsearchException.class, holder::get);
+        assertThat(holder.loads(), is(1));
+
+        fail.set(false);
+        assertThat(holder.reload(), is(false));
+        assertThat(holder.get().model, is("model"));
+        assertThat(holder.loads(), is(2));
+    }
+
+    public void testThatServiceReloadsChangedModelFile() throws Exception {
+        Path models = getDataPath("/models/en-ner-persons.bin").getParent();
+        Path configDirectory = createTempDir();
+        Files.copy(models.resolve("en-ner-persons.bin"), configDirectory.resolve("en-ner-entities.bin"));
+
+        Settings settings = Settings.builder()
+                .put("ingest.opennlp.model.file.entities", "en-ner-entities.bin")
+                .build();
+        OpenNlpService service = new OpenNlpService(configDirectory, settings).start();
+        String text = "Kobe Bryant was one of the best basketball players of all time. Munich is really an awesome city.";
+        assertThat(service.find(text, "entities"), contains("Kobe Bryant"));
+
+        Files.copy(models.resolve("en-ner-locations.bin"), configDirectory.resolve("en-ner-entities.bin"),
+                StandardCopyOption.REPLACE_EXISTING);
+        assertThat(service.getNameFinderModel("entities").reload(), is(true));
+        assertThat(service.find(text, "entities"), contains("Munich"));
+    }
+
+    public void testThatWatcherReloadsOnlyModelsOfChangedFile() throws Exception {
+        Path models = getDataPath("/models/en-ner-persons.bin").getParent();
+        Path configDirectory = createTempDir();
+        Files.copy(models.resolve("en-ner-persons.bin"), configDirectory.resolve("en-ner-entities.bin"));
+        Files.copy(models.resolve("en-ner-persons.bin"), configDirectory.resolve("en-ner-persons.bin"));
+
+        Settings settings = Settings.builder()
+                .put("ingest.opennlp.model.file.entities", "en-ner-entities.bin")
+                .put("ingest.opennlp.model.file.names", "en-ner-persons.bin")
+                .build();
+        OpenNlpService service = new OpenNlpService(configDirectory, settings).start();
+        FileWatcher watcher = service.modelWatcher(Runnable::run);
+        watcher.init();
+        long entities = service.getNameFinderModel("entities").get().generation;
+        long names = service.getNameFinderModel("names").get().generation;
+
+        Path file = configDirectory.resolve("en-ner-entities.bin");
+        Files.copy(models.resolve("en-ner-locations.bin"), file, StandardCopyOption.REPLACE_EXISTING);
+        Files.setLastModifiedTime(file, FileTime.fromMillis(Files.getLastModifiedTime(file).toMillis() + 60_000));
+        watcher.checkAndNotify();
+
+        assertThat(service.getNameFinderModel("entities").current().generation, greaterThan(entities));
+        assertThat(service.getNameFinderModel("entities").loads(), is(2));
+        assertThat(service.getNameFinderModel("names").current().generation, is(names));
+        assertThat(service.getNameFinderModel("names").loads(), is(1));
+    }
+
+    private <M> ModelHolder<M, Object> newHolder(CheckedFunction<Path, M, IOException> loader) {
+        return new ModelHolder<>("test", createTempDir().resolve("test.bin"), loader, model -> new DecoderPool<>(1, Object::new),
+                logger);
+    }
+}
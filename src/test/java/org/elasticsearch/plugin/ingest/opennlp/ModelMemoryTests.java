@@ -0,0 +1,101 @@
+/*
+ * Copyright [2016] [Alexander Reelsen]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.elasticsearch.plugin.ingest.opennlp;
+
+import org.apache.lucene.util.Accountable;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.test.ESTestCase;
+
+import java.util.Collections;
+import java.util.Set;
+
+import static org.hamcrest.Matchers.is;
+
+public class ModelMemoryTests extends ESTestCase {
+
+    public void testThatLeastRecentlyUsedModelIsEvictedWhenBudgetIsExceeded() {
+        ModelMemory memory = new ModelMemory(100, TimeValue.timeValueMillis(0), Collections.emptySet(), logger);
+        ModelHolder<Model, Object> first = newHolder(memory, "first", 60);
+        ModelHolder<Model, Object> second = newHolder(memory, "second", 60);
+
+        first.get();
+        assertThat(memory.residentBytes(), is(60L));
+        second.get();
+        assertThat(first.isLoaded(), is(false));
+        assertThat(second.isLoaded(), is(true));
+        assertThat(first.evictions(), is(1));
+        assertThat(memory.residentBytes(), is(60L));
+
+        // an evicted model is loaded again on its next use
+        first.get();
+        assertThat(first.isLoaded(), is(true));
+        assertThat(first.loads(), is(2));
+        assertThat(second.isLoaded(), is(false));
+    }
+
+    public void testThatPinnedModelsAreNeverEvicted() {
+        Set<String> pinned = Collections.singleton("pinned");
+        ModelMemory memory = new ModelMemory(100, TimeValue.timeValueNanos(1), pinned, logger);
+        ModelHolder<Model, Object> hot = newHolder(memory, "pinned", 80);
+        ModelHolder<Model, Object> other = newHolder(memory, "other", 80);
+
+        hot.get();
+        other.get();
+        assertThat(hot.isLoaded(), is(true));
+        // over budget, but there is nothing left that may be evicted
+        assertThat(other.isLoaded(), is(true));
+
+        memory.evictIdle();
+        assertThat(hot.isLoaded(), is(true));
+        assertThat(other.isLoaded(), is(false));
+        // the size of evicted models is still known
+        assertThat(other.estimatedBytes(), is(80L));
+    }
+
+    public void testThatUnlimitedBudgetKeepsAllModels() {
+        ModelMemory memory = new ModelMemory(0, TimeValue.timeValueMillis(0), Collections.emptySet(), logger);
+        ModelHolder<Model, Object> first = newHolder(memory, "first", 1 << 20);
+        ModelHolder<Model, Object> second = newHolder(memory, "second", 1 << 20);
+        first.get();
+        second.get();
+        memory.evictIdle();
+        assertThat(first.isLoaded(), is(true));
+        assertThat(second.isLoaded(), is(true));
+    }
+
+    private ModelHolder<Model, Object> newHolder(ModelMemory memory, String name, long bytes) {
+        ModelHolder<Model, Object> holder = new ModelHolder<>(name, createTempDir().resolve(name + ".bin"), path -> new Model(bytes),
+                model -> new DecoderPool<>(1, Object::new), logger);
+        memory.register(holder);
+        return holder;
+    }
+
+    private static final class Model implements Accountable {
+
+        private final long bytes;
+
+        Model(long bytes) {
+            this.bytes = bytes;
+        }
+
+        @Override
+        public long ramBytesUsed() {
+            return bytes;
+        }
+    }
+}
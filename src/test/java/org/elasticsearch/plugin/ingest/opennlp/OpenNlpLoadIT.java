@@ -0,0 +1,169 @@
+/*
+ * Copyright [2016] [Alexander Reelsen]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.elasticsearch.plugin.ingest.opennlp;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.nio.entity.NStringEntity;
+import org.elasticsearch.client.Response;
+import org.elasticsearch.test.rest.ESRestTestCase;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * End to end ingest throughput against the integration test cluster. Drives {@code _bulk} with and without the opennlp
+ * pipeline at several concurrency levels and logs documents and megabytes per second as well as bulk latencies.
+ *
+ * Disabled by default, run it with
+ * {@code gradle integTest -Dtests.class="*.OpenNlpLoadIT" -Dtests.opennlp.load=true}
+ */
+public class OpenNlpLoadIT extends ESRestTestCase {
+
+    private static final String INDEX = "opennlp-load";
+    private static final String PIPELINE = "opennlp-load";
+    private static final ContentType NDJSON = ContentType.create("application/x-ndjson", StandardCharsets.UTF_8);
+
+    public void testBulkThroughput() throws Exception {
+        assumeTrue("the load harness only runs with -Dtests.opennlp.load=true", "true".equals(System.getProperty("tests.opennlp.load")));
+        int documents = Integer.parseInt(System.getProperty("tests.opennlp.load.documents", "5000"));
+        int bulkSize = Integer.parseInt(System.getProperty("tests.opennlp.load.bulk_size", "100"));
+        int documentLength = Integer.parseInt(System.getProperty("tests.opennlp.load.document_length", "2000"));
+        String[] concurrencies = System.getProperty("tests.opennlp.load.concurrency", "1,2,4,8").split(",");
+
+        List<String> bulks = bulks(new SyntheticCorpus(42), documents, bulkSize, documentLength);
+        long bytes = 0;
+        for (String bulk : bulks) {
+            bytes += bulk.getBytes(StandardCharsets.UTF_8).length;
+        }
+
+        client().performRequest("PUT", "_ingest/pipeline/" + PIPELINE, Collections.emptyMap(),
+                json("{\"processors\":[{\"opennlp\":{\"field\":\"content\"}}]}"));
+        // the first documents load models and compile the hot paths, they should not count
+        run(bulks.subList(0, Math.min(bulks.size(), 10)), 1, PIPELINE);
+
+        logger.info(String.format(Locale.ROOT, "%d documents of %d characters in bulks of %d, %d bytes in total",
+                documents, documentLength, bulkSize, bytes));
+        logger.info(String.format(Locale.ROOT, "%-8s %11s %10s %8s %10s %10s %8s",
+                "pipeline", "concurrency", "docs/s", "MB/s", "p50 ms", "p99 ms", "failed"));
+        for (String concurrency : concurrencies) {
+            int threads = Integer.parseInt(concurrency.trim());
+            for (String pipeline : new String[] { null, PIPELINE }) {
+                Result result = run(bulks, threads, pipeline);
+                double seconds = result.nanos / 1_000_000_000.0;
+                logger.info(String.format(Locale.ROOT, "%-8s %11d %10.1f %8.2f %10.1f %10.1f %8d",
+                        pipeline == null ? "none" : "opennlp", threads, documents / seconds, bytes / seconds / 1024 / 1024,
+                        result.latencies.percentileMicros(50) / 1000.0, result.latencies.percentileMicros(99) / 1000.0,
+                        result.failed.get()));
+            }
+        }
+    }
+
+    private static List<String> bulks(SyntheticCorpus corpus, int documents, int bulkSize, int documentLength) {
+        List<String> bulks = new ArrayList<>();
+        StringBuilder bulk = new StringBuilder();
+        for (int i = 0; i < documents; i++) {
+            bulk.append("{\"index\":{\"_index\":\"").append(INDEX).append("\",\"_type\":\"doc\"}}\n");
+            bulk.append("{\"content\":\"").append(escape(corpus.document(documentLength))).append("\"}\n");
+            if ((i + 1) % bulkSize == 0 || i == documents - 1) {
+                bulks.add(bulk.toString());
+                bulk.setLength(0);
+            }
+        }
+        return bulks;
+    }
+
+    /**
+     * Sends all bulks to a fresh index, with the given number of clients sending in parallel
+     */
+    private Result run(List<String> bulks, int threads, String pipeline) throws Exception {
+        client().performRequest("DELETE", INDEX, Collections.singletonMap("ignore_unavailable", "true"));
+        // refreshes and replicas would only add noise to the measurement
+        client().performRequest("PUT", INDEX, Collections.emptyMap(),
+                json("{\"settings\":{\"number_of_replicas\":0,\"refresh_interval\":\"-1\"}}"));
+        Map<String, String> params = pipeline == null ? Collections.emptyMap() : Collections.singletonMap("pipeline", pipeline);
+
+        Result result = new Result();
+        AtomicInteger next = new AtomicInteger();
+        AtomicReference<Exception> failure = new AtomicReference<>();
+        List<Thread> clients = new ArrayList<>(threads);
+        for (int t = 0; t < threads; t++) {
+            clients.add(new Thread(() -> {
+                for (int i = next.getAndIncrement(); i < bulks.size() && failure.get() == null; i = next.getAndIncrement()) {
+                    try {
+                        long start = System.nanoTime();
+                        Response response = client().performRequest("POST", "_bulk", params, new NStringEntity(bulks.get(i), NDJSON));
+                        result.latencies.record(System.nanoTime() - start);
+                        result.failed.addAndGet(failedItems(entityAsMap(response)));
+                    } catch (Exception e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            }, "opennlp-load-client[" + t + "]"));
+        }
+        long start = System.nanoTime();
+        for (Thread client : clients) {
+            client.start();
+        }
+        for (Thread client : clients) {
+            client.join();
+        }
+        result.nanos = System.nanoTime() - start;
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+        return result;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static long failedItems(Map<String, Object> response) {
+        if (Boolean.TRUE.equals(response.get("errors")) == false) {
+            return 0;
+        }
+        long failed = 0;
+        for (Object item : (List<Object>) response.get("items")) {
+            Map<String, Object> result = (Map<String, Object>) ((Map<String, Object>) item).get("index");
+            if (((Number) result.get("status")).intValue() >= 300) {
+                failed++;
+            }
+        }
+        return failed;
+    }
+
+    private static HttpEntity json(String body) {
+        return new NStringEntity(body, ContentType.APPLICATION_JSON);
+    }
+
+    private static String escape(String text) {
+        return text.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+
+    private static final class Result {
+
+        final LatencyHistogram latencies = new LatencyHistogram();
+        final AtomicLong failed = new AtomicLong();
+        long nanos;
+    }
+}
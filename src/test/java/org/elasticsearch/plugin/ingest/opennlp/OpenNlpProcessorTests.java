@@ -17,10 +17,17 @@
 
 package org.elasticsearch.plugin.ingest.opennlp;
 
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.ElasticsearchTimeoutException;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+import org.elasticsearch.common.util.concurrent.EsThreadPoolExecutor;
+import org.elasticsearch.common.util.concurrent.ThreadContext;
 import org.elasticsearch.ingest.IngestDocument;
 import org.elasticsearch.ingest.Processor;
 import org.elasticsearch.ingest.RandomDocumentPicks;
+import org.elasticsearch.rest.RestStatus;
 import org.elasticsearch.test.ESTestCase;
 import org.junit.Before;
 
@@ -33,11 +40,18 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
 import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.containsString;
 import static org.hamcrest.Matchers.hasKey;
+import static org.hamcrest.Matchers.hasSize;
 import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
 import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
 
 public class OpenNlpProcessorTests extends ESTestCase {
 
@@ -108,6 +122,28 @@ public class OpenNlpProcessorTests extends ESTestCase {
         assertThatHasElements(entityData, "locations", "Paris", "Munich", "New York");
     }
 
+    public void testThatNestedFieldsOfAnyDepthAreAnalyzed() throws Exception {
+        Map<String, Object> document = new HashMap<>();
+        document.put("posts", Arrays.asList(
+                Collections.singletonMap("comments", Arrays.asList(
+                        Collections.singletonMap("text", "Kobe Bryant was one of the best basketball players of all times."),
+                        Collections.singletonMap("text", "Munich is really an awesome city, but New York is as well."))),
+                Collections.singletonMap("comments", Collections.singletonMap("text",
+                        "Not even Michael Jordan has ever scored 81 points in one game."))));
+        IngestDocument ingestDocument = RandomDocumentPicks.randomIngestDocument(random(), document);
+
+        OpenNlpProcessor processor = new OpenNlpProcessor(service, randomAlphaOfLength(10),
+                Collections.singletonList("posts.comments.text"), "target_field", new HashSet<>(Arrays.asList("names", "locations")));
+        processor.execute(ingestDocument);
+
+        Map<String, Object> entityData = getIngestDocumentData(ingestDocument);
+        assertThatHasElements(entityData, "names", "Kobe Bryant", "Michael Jordan");
+        assertThatHasElements(entityData, "locations", "Munich", "New York");
+        @SuppressWarnings("unchecked")
+        Map<String, Object> sentiment = ingestDocument.getFieldValue("opennlp.sentiment", Map.class);
+        assertThat(sentiment, hasKey("posts.comments.text"));
+    }
+
     public void testConstructorNoFieldsSpecified() throws Exception {
         Map<String, Object> config = new HashMap<>();
         config.put("field", sourceFields);
@@ -125,6 +161,285 @@ public class OpenNlpProcessorTests extends ESTestCase {
 
     }
 
+    public void testThatContentCanBeAnalyzedInChunks() throws Exception {
+        Map<String, Object> config = new HashMap<>();
+        config.put("field", sourceFields);
+        config.put("target_field", "target_field");
+        config.put("chunk_size", randomIntBetween(100, 150));
+        config.put("max_chars", 127);
+
+        OpenNlpProcessor processor = new OpenNlpProcessor.Factory(service).create(Collections.emptyMap(), randomAlphaOfLength(10), config);
+
+        Map<String, Object> entityData = getIngestDocumentData(processor);
+
+        // only the first two sentences are within the limit
+        assertThatHasElements(entityData, "names", "Kobe Bryant", "Michael Jordan");
+        assertThat(entityData, not(hasKey("locations")));
+        assertThat(entityData, not(hasKey("dates")));
+    }
+
+    public void testThatNegativeChunkSizeIsRejected() throws Exception {
+        Map<String, Object> config = new HashMap<>();
+        config.put("field", sourceFields);
+        config.put("chunk_size", -1);
+
+        OpenNlpProcessor.Factory factory = new OpenNlpProcessor.Factory(service);
+        ElasticsearchException e = expectThrows(ElasticsearchException.class,
+                () -> factory.create(Collections.emptyMap(), randomAlphaOfLength(10), config));
+        assertThat(e.getMessage(), containsString("chunk_size"));
+    }
+
+    public void testThatUnknownFieldsAreRejectedOnCreation() throws Exception {
+        Map<String, Object> config = new HashMap<>();
+        config.put("field", sourceFields);
+        config.put("fields", Arrays.asList("names", "unknown"));
+
+        OpenNlpProcessor.Factory factory = new OpenNlpProcessor.Factory(service);
+        ElasticsearchException e = expectThrows(ElasticsearchException.class,
+                () -> factory.create(Collections.emptyMap(), randomAlphaOfLength(10), config));
+        assertThat(e.getMessage(), containsString("unknown model [unknown]"));
+    }
+
+    public void testThatPreFilterSkipsTextWithoutEntities() throws Exception {
+        Map<String, Object> config = new HashMap<>();
+        config.put("field", sourceFields);
+        config.put("target_field", "target_field");
+        config.put("prefilter", Collections.singletonMap("min_capitalized_ratio", 0.1));
+
+        OpenNlpProcessor processor = new OpenNlpProcessor.Factory(service).create(Collections.emptyMap(), randomAlphaOfLength(10), config);
+
+        IngestDocument ingestDocument = getIngestDocument("user logged in from host web-01 after 3 attempts");
+        processor.execute(ingestDocument);
+        assertThat(getIngestDocumentData(ingestDocument).isEmpty(), is(true));
+        assertThat(service.getStats().preFilterSkipped(PreFilter.Reason.MIN_CAPITALIZED_RATIO), is(1L));
+
+        Map<String, Object> entityData = getIngestDocumentData(processor);
+        assertThatHasElements(entityData, "names", "Kobe Bryant", "Michael Jordan");
+        assertThat(service.getStats().preFilterPassed(), is(1L));
+    }
+
+    public void testThatTimeoutWritesPartialResult() throws Exception {
+        Map<String, Object> config = new HashMap<>();
+        config.put("field", sourceFields);
+        config.put("target_field", "target_field");
+        config.put("timeout", "1nanos");
+
+        OpenNlpProcessor processor = new OpenNlpProcessor.Factory(service).create(Collections.emptyMap(), randomAlphaOfLength(10), config);
+
+        IngestDocument ingestDocument = getIngestDocument();
+        processor.execute(ingestDocument);
+        assertThat(ingestDocument.getFieldValue("opennlp.truncated", Boolean.class), is(true));
+        assertThat(service.getStats().timeouts(), is(1L));
+
+        config = new HashMap<>();
+        config.put("field", sourceFields);
+        config.put("target_field", "target_field");
+        config.put("timeout", "1m");
+        processor = new OpenNlpProcessor.Factory(service).create(Collections.emptyMap(), randomAlphaOfLength(10), config);
+
+        ingestDocument = getIngestDocument();
+        processor.execute(ingestDocument);
+        assertThat(ingestDocument.hasField("opennlp.truncated"), is(false));
+        assertThatHasElements(getIngestDocumentData(ingestDocument), "names", "Kobe Bryant", "Michael Jordan");
+        assertThat(service.getStats().timeouts(), is(1L));
+    }
+
+    public void testThatTimeoutFailsIfConfigured() throws Exception {
+        Map<String, Object> config = new HashMap<>();
+        config.put("field", sourceFields);
+        config.put("timeout", "1nanos");
+        config.put("on_timeout", "fail");
+
+        OpenNlpProcessor processor = new OpenNlpProcessor.Factory(service).create(Collections.emptyMap(), randomAlphaOfLength(10), config);
+
+        IngestDocument ingestDocument = getIngestDocument();
+        expectThrows(ElasticsearchTimeoutException.class, () -> processor.execute(ingestDocument));
+        assertThat(service.getStats().timeouts(), is(1L));
+    }
+
+    public void testThatUnknownTimeoutBehaviourIsRejected() throws Exception {
+        Map<String, Object> config = new HashMap<>();
+        config.put("field", sourceFields);
+        config.put("timeout", "100ms");
+        config.put("on_timeout", "ignore");
+
+        OpenNlpProcessor.Factory factory = new OpenNlpProcessor.Factory(service);
+        ElasticsearchException e = expectThrows(ElasticsearchException.class,
+                () -> factory.create(Collections.emptyMap(), randomAlphaOfLength(10), config));
+        assertThat(e.getMessage(), containsString("on_timeout"));
+    }
+
+    public void testThatAnalysisRunsOnExecutor() throws Exception {
+        Set<String> threads = Collections.synchronizedSet(new HashSet<>());
+        service.setExecutor(command -> {
+            Thread thread = new Thread(() -> {
+                threads.add(Thread.currentThread().getName());
+                command.run();
+            }, "opennlp-test");
+            thread.start();
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                throw new AssertionError(e);
+            }
+        });
+        OpenNlpProcessor processor = new OpenNlpProcessor(service, randomAlphaOfLength(10), sourceFields, "target_field",
+                new HashSet<>(Arrays.asList("names", "locations")));
+
+        Map<String, Object> entityData = getIngestDocumentData(processor);
+
+        assertThatHasElements(entityData, "names", "Kobe Bryant", "Michael Jordan");
+        assertThatHasElements(entityData, "locations", "Munich", "New York");
+        assertThat(threads, containsInAnyOrder("opennlp-test"));
+    }
+
+    public void testThatRejectionIsPassedOnUnlessCallerRuns() throws Exception {
+        service.setExecutor(command -> {
+            throw new RejectedExecutionException("queue is full");
+        });
+        OpenNlpProcessor processor = new OpenNlpProcessor(service, randomAlphaOfLength(10), sourceFields, "target_field",
+                new HashSet<>(Arrays.asList("names")));
+        expectThrows(RejectedExecutionException.class, () -> processor.execute(getIngestDocument()));
+
+        Settings settings = Settings.builder()
+                .put("ingest.opennlp.model.file.names", "en-ner-persons.bin")
+                .put("ingest.opennlp.thread_pool.caller_runs", true)
+                .build();
+        OpenNlpService callerRunsService = new OpenNlpService(getDataPath("/models/en-ner-persons.bin").getParent(), settings).start();
+        callerRunsService.setExecutor(command -> {
+            throw new RejectedExecutionException("queue is full");
+        });
+        OpenNlpProcessor callerRunsProcessor = new OpenNlpProcessor(callerRunsService, randomAlphaOfLength(10), sourceFields,
+                "target_field", new HashSet<>(Arrays.asList("names")));
+        assertThatHasElements(getIngestDocumentData(callerRunsProcessor), "names", "Kobe Bryant", "Michael Jordan");
+    }
+
+    public void testThatFullThreadPoolRejectsUnlessCallerRuns() throws Exception {
+        EsThreadPoolExecutor executor = EsExecutors.newFixed("opennlp", 1, 1, EsExecutors.daemonThreadFactory("opennlp"),
+                new ThreadContext(Settings.EMPTY));
+        CountDownLatch blocked = new CountDownLatch(1);
+        try {
+            // one task occupies the only thread, the other one the only queue slot
+            executor.execute(() -> {
+                try {
+                    blocked.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            executor.execute(() -> {});
+
+            service.setExecutor(executor);
+            OpenNlpProcessor processor = new OpenNlpProcessor(service, randomAlphaOfLength(10), sourceFields, "target_field",
+                    new HashSet<>(Arrays.asList("names")));
+            EsRejectedExecutionException e = expectThrows(EsRejectedExecutionException.class,
+                    () -> processor.execute(getIngestDocument()));
+            assertThat(e.status(), is(RestStatus.TOO_MANY_REQUESTS));
+
+            Settings settings = Settings.builder()
+                    .put("ingest.opennlp.model.file.names", "en-ner-persons.bin")
+                    .put("ingest.opennlp.thread_pool.caller_runs", true)
+                    .build();
+            OpenNlpService callerRunsService = new OpenNlpService(getDataPath("/models/en-ner-persons.bin").getParent(), settings)
+                    .start();
+            callerRunsService.setExecutor(executor);
+            OpenNlpProcessor callerRunsProcessor = new OpenNlpProcessor(callerRunsService, randomAlphaOfLength(10), sourceFields,
+                    "target_field", new HashSet<>(Arrays.asList("names")));
+            assertThatHasElements(getIngestDocumentData(callerRunsProcessor), "names", "Kobe Bryant", "Michael Jordan");
+            assertThat(executor.getCompletedTaskCount(), is(0L));
+        } finally {
+            blocked.countDown();
+            executor.shutdown();
+            assertThat(executor.awaitTermination(10, TimeUnit.SECONDS), is(true));
+        }
+    }
+
+    public void testThatProcessorsCanNameModelFiles() throws Exception {
+        Map<String, Object> config = new HashMap<>();
+        config.put("field", sourceFields);
+        config.put("target_field", "target_field");
+        config.put("fields", Collections.singletonList("dates"));
+        // the same file as the names model of the node, which is used instead of loading the file again
+        config.put("models", Collections.singletonMap("people", "en-ner-persons.bin"));
+
+        OpenNlpProcessor processor = new OpenNlpProcessor.Factory(service).create(Collections.emptyMap(), randomAlphaOfLength(10), config);
+        Map<String, Object> entityData = getIngestDocumentData(processor);
+
+        assertThatHasElements(entityData, "people", "Kobe Bryant", "Michael Jordan");
+        assertThatHasElements(entityData, "dates", "Yesterday");
+        assertThat(entityData, not(hasKey("names")));
+        assertThat(service.getRegistry().holders(), hasSize(0));
+    }
+
+    public void testThatLanguageModelFilesAreNotLoadedAgain() throws Exception {
+        Settings settings = Settings.builder()
+                .put("ingest.opennlp.model.file.names", "en-ner-persons.bin")
+                .put("ingest.opennlp.model.deu.file.organizations", "en-ner-organization.bin")
+                .build();
+        OpenNlpService languageService = new OpenNlpService(getDataPath("/models/en-ner-persons.bin").getParent(), settings).start();
+        Map<String, Object> config = new HashMap<>();
+        config.put("field", sourceFields);
+        config.put("models", Collections.singletonMap("organizations", "en-ner-organization.bin"));
+        new OpenNlpProcessor.Factory(languageService).create(Collections.emptyMap(), randomAlphaOfLength(10), config);
+
+        assertThat(languageService.getRegistry().holders(), hasSize(0));
+        assertThat(languageService.acquireModel("en-ner-organization.bin", new Object()),
+                sameInstance(languageService.getLanguageModel("deu", "organizations")));
+    }
+
+    public void testThatModelFilesAreSharedAndReleased() throws Exception {
+        OpenNlpProcessor first = createProcessorWithModelFile("en-ner-organization.bin");
+        OpenNlpProcessor second = createProcessorWithModelFile("en-ner-organization.bin");
+        assertThat(service.getRegistry().users("en-ner-organization.bin"), is(2));
+        assertThat(service.getRegistry().holders(), hasSize(1));
+        first.execute(getIngestDocument());
+        second.execute(getIngestDocument());
+        assertThat(service.getRegistry().holders().get(0).loads(), is(1));
+
+        // releasing explicitly takes the same path as a processor that has been garbage collected
+        service.getRegistry().release(first.modelOwner());
+        assertThat(service.getRegistry().users("en-ner-organization.bin"), is(1));
+        assertThat(service.getRegistry().holders(), hasSize(1));
+
+        service.getRegistry().release(second.modelOwner());
+        assertThat(service.getRegistry().users("en-ner-organization.bin"), is(0));
+        assertThat(service.getRegistry().holders(), hasSize(0));
+    }
+
+    public void testThatModelsOfCollectedProcessorsAreReleased() throws Exception {
+        // nothing but the registry refers to the processor once it has run
+        createProcessorWithModelFile("en-ner-organization.bin").execute(getIngestDocument());
+        assertThat(service.getRegistry().users("en-ner-organization.bin"), is(1));
+
+        assertBusy(() -> {
+            System.gc();
+            service.releaseUnusedModels();
+            assertThat(service.getRegistry().users("en-ner-organization.bin"), is(0));
+            assertThat(service.getRegistry().holders(), hasSize(0));
+        });
+    }
+
+    public void testThatMissingModelFilesAreRejected() throws Exception {
+        OpenNlpProcessor.Factory factory = new OpenNlpProcessor.Factory(service);
+        for (String file : Arrays.asList("does-not-exist.bin", "../en-ner-persons.bin")) {
+            Map<String, Object> config = new HashMap<>();
+            config.put("field", sourceFields);
+            config.put("models", Collections.singletonMap("people", file));
+            ElasticsearchException e = expectThrows(ElasticsearchException.class,
+                    () -> factory.create(Collections.emptyMap(), randomAlphaOfLength(10), config));
+            assertThat(e.getMessage(), containsString("does not exist"));
+        }
+    }
+
+    private OpenNlpProcessor createProcessorWithModelFile(String file) throws Exception {
+        Map<String, Object> config = new HashMap<>();
+        config.put("field", sourceFields);
+        config.put("target_field", "target_field");
+        config.put("fields", Collections.singletonList("names"));
+        config.put("models", Collections.singletonMap("organizations", file));
+        return new OpenNlpProcessor.Factory(service).create(Collections.emptyMap(), randomAlphaOfLength(10), config);
+    }
+
     private Map<String, Object> getIngestDocumentData(OpenNlpProcessor processor) throws Exception {
         IngestDocument ingestDocument = getIngestDocument();
         processor.execute(ingestDocument);
@@ -17,16 +17,28 @@
 
 package org.elasticsearch.plugin.ingest.opennlp;
 
+import org.elasticsearch.ElasticsearchException;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.set.Sets;
 import org.elasticsearch.test.ESTestCase;
 
 import java.io.IOException;
 import java.net.URISyntaxException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CyclicBarrier;
 
 import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.containsString;
 import static org.hamcrest.Matchers.hasItem;
 import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.is;
 
 /*
  * Important: You need to run gradle from the command line first
@@ -57,4 +69,217 @@ public class OpenNlpServiceTests extends ESTestCase {
         assertThat(dates, hasSize(1));
         assertThat(dates, contains("Yesterday"));
     }
+
+    public void testThatAnalyzeRunsAllModelsOnce() throws IOException {
+        Settings settings = Settings.builder()
+                .put("ingest.opennlp.model.file.names", "en-ner-persons.bin")
+                .put("ingest.opennlp.model.file.locations", "en-ner-locations.bin")
+                .put("ingest.opennlp.model.file.dates", "en-ner-dates.bin")
+                .put("ingest.opennlp.tokenizer.file.sentences", "en-sent.bin")
+                .build();
+        OpenNlpService service = new OpenNlpService(getDataPath("/models/en-ner-persons.bin").getParent(), settings);
+        service.start();
+
+        Map<String, Set<String>> entities = service.analyze("Kobe Bryant was one of the best basketball players of all time. " +
+                "Munich is really an awesome city, but New York is as well. Yesterday has been the hottest day of the year.",
+                Sets.newHashSet("names", "locations", "dates"));
+
+        assertThat(entities.keySet(), containsInAnyOrder("names", "locations", "dates"));
+        assertThat(entities.get("names"), contains("Kobe Bryant"));
+        assertThat(entities.get("locations"), containsInAnyOrder("Munich", "New York"));
+        assertThat(entities.get("dates"), contains("Yesterday"));
+    }
+
+    public void testThatManyTextsAreAnalyzedInOnePass() throws IOException {
+        Settings settings = Settings.builder()
+                .put("ingest.opennlp.model.file.names", "en-ner-persons.bin")
+                .put("ingest.opennlp.model.file.locations", "en-ner-locations.bin")
+                .build();
+        OpenNlpService service = new OpenNlpService(getDataPath("/models/en-ner-persons.bin").getParent(), settings);
+        service.start();
+
+        // no sentence model, every text is a sentence of its own and nothing spans two texts
+        List<String> contents = Arrays.asList("Kobe Bryant was one of the best basketball players of all time",
+                "Munich is really an awesome city", "", "Michael Jordan has scored 69 points in one game");
+        Map<String, Set<String>> entities = service.analyze(contents, service.plan(Sets.newHashSet("names", "locations")), 0, 0);
+
+        assertThat(entities.get("names"), containsInAnyOrder("Kobe Bryant", "Michael Jordan"));
+        assertThat(entities.get("locations"), contains("Munich"));
+    }
+
+    public void testThatAnalyzeRejectsUnknownFields() throws IOException {
+        Settings settings = Settings.builder()
+                .put("ingest.opennlp.model.file.names", "en-ner-persons.bin")
+                .build();
+        OpenNlpService service = new OpenNlpService(getDataPath("/models/en-ner-persons.bin").getParent(), settings);
+        service.start();
+
+        ElasticsearchException e = expectThrows(ElasticsearchException.class,
+                () -> service.analyze("Kobe Bryant", Sets.newHashSet("names", "unknown")));
+        assertThat(e.getMessage(), containsString("unknown"));
+    }
+
+    public void testThatModelsCanBeLoadedLazily() throws Exception {
+        Settings settings = Settings.builder()
+                .put("ingest.opennlp.model.file.names", "en-ner-persons.bin")
+                .put("ingest.opennlp.model.file.locations", "en-ner-locations.bin")
+                .put("ingest.opennlp.tokenizer.file.sentences", "en-sent.bin")
+                .put("ingest.opennlp.lazy_load", true)
+                .build();
+        OpenNlpService service = new OpenNlpService(getDataPath("/models/en-ner-persons.bin").getParent(), settings);
+        service.start();
+
+        assertThat(service.getNameFinderModel("names").isLoaded(), is(false));
+        assertThat(service.getNameFinderModel("locations").isLoaded(), is(false));
+
+        int threads = randomIntBetween(2, 10);
+        CyclicBarrier barrier = new CyclicBarrier(threads);
+        List<Thread> workers = new ArrayList<>(threads);
+        List<Set<String>> results = new CopyOnWriteArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            Thread thread = new Thread(() -> {
+                try {
+                    barrier.await();
+                    results.add(service.find("Kobe Bryant was one of the best basketball players of all time.", "names"));
+                } catch (Exception e) {
+                    throw new AssertionError(e);
+                }
+            });
+            workers.add(thread);
+            thread.start();
+        }
+        for (Thread thread : workers) {
+            thread.join();
+        }
+
+        assertThat(results, hasSize(threads));
+        for (Set<String> names : results) {
+            assertThat(names, contains("Kobe Bryant"));
+        }
+        // concurrent first callers share one load, unused models are never read
+        assertThat(service.getNameFinderModel("names").loads(), is(1));
+        assertThat(service.getNameFinderModel("locations").isLoaded(), is(false));
+    }
+
+    public void testThatBrokenModelDoesNotPreventOthersFromLoading() throws IOException {
+        Settings settings = Settings.builder()
+                .put("ingest.opennlp.model.file.names", "en-ner-persons.bin")
+                .put("ingest.opennlp.model.file.broken", "does-not-exist.bin")
+                .build();
+        OpenNlpService service = new OpenNlpService(getDataPath("/models/en-ner-persons.bin").getParent(), settings);
+        service.start();
+
+        assertThat(service.find("Kobe Bryant was one of the best basketball players of all time.", "names"), contains("Kobe Bryant"));
+        ElasticsearchException e = expectThrows(ElasticsearchException.class, () -> service.find("Kobe Bryant", "broken"));
+        assertThat(e.getMessage(), containsString("broken"));
+        assertThat(service.getNameFinderModel("broken").loads(), is(1));
+    }
+
+    public void testThatLargeDocumentsCanBeAnalyzedInParallel() throws IOException {
+        Settings.Builder builder = Settings.builder()
+                .put("ingest.opennlp.model.file.names", "en-ner-persons.bin")
+                .put("ingest.opennlp.model.file.locations", "en-ner-locations.bin")
+                .put("ingest.opennlp.tokenizer.file.sentences", "en-sent.bin");
+        Path models = getDataPath("/models/en-ner-persons.bin").getParent();
+        OpenNlpService sequential = new OpenNlpService(models, builder.build()).start();
+        OpenNlpService parallel = new OpenNlpService(models, builder
+                .put("ingest.opennlp.parallel.enabled", true)
+                .put("ingest.opennlp.parallel.min_length", 1)
+                .put("ingest.opennlp.parallel.threads", randomIntBetween(1, 4))
+                .build()).start();
+        try {
+            StringBuilder content = new StringBuilder();
+            for (int i = 0; i < 50; i++) {
+                content.append(randomFrom("Kobe Bryant was one of the best basketball players of all time. ",
+                        "Munich is really an awesome city, but New York is as well. ",
+                        "Not even Michael Jordan has ever scored 81 points in one game. ",
+                        "Yesterday has been the hottest day of the year. "));
+            }
+            Set<String> fields = Sets.newHashSet("names", "locations");
+
+            assertThat(parallel.analyze(content.toString(), fields), is(sequential.analyze(content.toString(), fields)));
+        } finally {
+            parallel.close();
+        }
+    }
+
+    public void testThatOversizedContentCanBeAnalyzedInChunks() throws IOException {
+        Settings settings = Settings.builder()
+                .put("ingest.opennlp.model.file.names", "en-ner-persons.bin")
+                .put("ingest.opennlp.model.file.locations", "en-ner-locations.bin")
+                .put("ingest.opennlp.tokenizer.file.sentences", "en-sent.bin")
+                .put("ingest.opennlp.misc.file.sentiment", "en-stanford-sentiment.bin")
+                .build();
+        OpenNlpService service = new OpenNlpService(getDataPath("/models/en-ner-persons.bin").getParent(), settings).start();
+
+        String content = "Kobe Bryant was one of the best basketball players of all time. " +
+                "Munich is really an awesome city, but New York is as well. " +
+                "Not even Michael Jordan has ever scored 81 points in one game.";
+        Set<String> fields = Sets.newHashSet("names", "locations");
+
+        // windows are cut at sentence boundaries, so no entity is split in two
+        Map<String, Set<String>> entities = service.analyze(content, fields, randomIntBetween(70, 100), 0);
+        assertThat(entities.get("names"), containsInAnyOrder("Kobe Bryant", "Michael Jordan"));
+        assertThat(entities.get("locations"), containsInAnyOrder("Munich", "New York"));
+
+        // a window smaller than a sentence falls back to whitespace
+        entities = service.analyze(content, fields, 20, 0);
+        assertThat(entities.get("names").isEmpty(), is(false));
+
+        // nothing past the limit is analyzed
+        entities = service.analyze(content, fields, randomIntBetween(0, 100), 64);
+        assertThat(entities.get("names"), contains("Kobe Bryant"));
+        assertThat(entities.get("locations"), hasSize(0));
+
+        String sentence = "Munich is really an awesome city, but New York is as well. ";
+        String repeated = sentence + sentence + sentence;
+        assertThat(service.getSentiment(repeated, sentence.length() + 10, 0), is(service.getSentiment(sentence)));
+    }
+
+    public void testThatDocumentsAreRoutedByLanguage() throws IOException {
+        Settings settings = Settings.builder()
+                .put("ingest.opennlp.model.file.names", "en-ner-persons.bin")
+                // any model will do to check the routing
+                .put("ingest.opennlp.model.deu.file.names", "en-ner-persons.bin")
+                .put("ingest.opennlp.misc.file.language", "langdetect-183.bin")
+                .build();
+        OpenNlpService service = new OpenNlpService(getDataPath("/models/en-ner-persons.bin").getParent(), settings).start();
+
+        assertThat(service.getNameFinderModel("names").isLoaded(), is(true));
+        assertThat(service.getLanguageModel("deu", "names").isLoaded(), is(false));
+        assertThat(service.miscGroupExists(), is(false));
+
+        Map<String, Set<String>> entities = service.analyze("Kobe Bryant was one of the best basketball players of all time.",
+                Sets.newHashSet("names"));
+        assertThat(entities.get("names"), contains("Kobe Bryant"));
+        assertThat(service.getLanguageModel("deu", "names").isLoaded(), is(false));
+
+        service.analyze("Gestern haben sich die Minister in der Hauptstadt getroffen, um über den Haushalt des nächsten Jahres " +
+                "zu sprechen.", Sets.newHashSet("names"));
+        assertThat(service.getLanguageModel("deu", "names").isLoaded(), is(true));
+
+        // no models for french, named entity recognition is skipped
+        entities = service.analyze("Le président de la République a rencontré hier les représentants des syndicats pour discuter " +
+                "de la réforme des retraites.", Sets.newHashSet("names"));
+        assertThat(entities.containsKey("names"), is(false));
+
+        assertThat(service.getStats().language("eng"), is(1L));
+        assertThat(service.getStats().language("deu"), is(1L));
+        assertThat(service.getStats().language("fra"), is(1L));
+    }
+
+    public void testThatWarmUpDoesNotShowUpInStats() throws IOException {
+        Settings settings = Settings.builder()
+                .put("ingest.opennlp.model.file.names", "en-ner-persons.bin")
+                .put("ingest.opennlp.warmup.documents", 20)
+                .put("ingest.opennlp.cache.enabled", true)
+                .build();
+        OpenNlpService service = new OpenNlpService(getDataPath("/models/en-ner-persons.bin").getParent(), settings).start();
+
+        assertThat(service.getStats().documents(), is(0L));
+        Map<String, Set<String>> entities = service.analyze("Kobe Bryant was one of the best basketball players of all time.",
+                Sets.newHashSet("names"));
+        assertThat(entities.get("names"), contains("Kobe Bryant"));
+        assertThat(service.getStats().documents(), is(1L));
+    }
 }
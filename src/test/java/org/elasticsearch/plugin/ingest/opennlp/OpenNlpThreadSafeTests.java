@@ -33,6 +33,9 @@ import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.hamcrest.Matchers.notNullValue;
 import static org.hamcrest.core.Is.is;
 
 public class OpenNlpThreadSafeTests extends ESTestCase {
@@ -47,6 +50,7 @@ public class OpenNlpThreadSafeTests extends ESTestCase {
                 .put("ingest.opennlp.model.file.locations", "en-ner-locations.bin")
                 .put("ingest.opennlp.tokenizer.file.sentences", "en-sent.bin")
                 .put("ingest.opennlp.misc.file.sentiment", "en-stanford-sentiment.bin")
+                .put("ingest.opennlp.decoder_pool.size", 10)
                 .build();
         service = new OpenNlpService(getDataPath("/models/en-ner-persons.bin").getParent(), settings).start();
         executorService = Executors.newFixedThreadPool(10);
@@ -77,12 +81,65 @@ public class OpenNlpThreadSafeTests extends ESTestCase {
         }
     }
 
+    public void testThatDecodersAreReusedAcrossThreads() throws Exception {
+        int runs = 1000;
+        CountDownLatch latch = new CountDownLatch(runs);
+        List<OpennlpRunnable> runnables = new ArrayList<>();
+
+        for (int i = 0; i < runs; i++) {
+            String city = randomFrom("Munich", "Stockholm", "Madrid", "San Francisco", "Cologne", "Paris", "London", "Amsterdam");
+
+            OpennlpRunnable runnable = new OpennlpRunnable(i, city, latch);
+            runnables.add(runnable);
+            executorService.submit(runnable);
+        }
+
+        latch.await(30, TimeUnit.SECONDS);
+        for (OpennlpRunnable runnable : runnables) {
+            runnable.assertResultIsCorrect();
+        }
+
+        // never more decoders than concurrently running threads, and all of them are handed back
+        assertThat(service.getNameFinderPool("locations").created(), lessThanOrEqualTo(10L));
+        assertThat(service.getNameFinderPool("locations").idle(), is((int) service.getNameFinderPool("locations").created()));
+        assertThat(service.getSentenceDetectorPool().created(), lessThanOrEqualTo(10L));
+        assertThat(service.getSentimentPool().created(), lessThanOrEqualTo(10L));
+    }
+
+    public void testThatDecodersSurviveThreadTurnover() throws Exception {
+        // a fresh pool per batch mimics write pool threads being replaced, decoders must not be tied to them
+        for (int batch = 0; batch < 5; batch++) {
+            ExecutorService batchExecutor = Executors.newFixedThreadPool(randomIntBetween(1, 10));
+            try {
+                int runs = 100;
+                CountDownLatch latch = new CountDownLatch(runs);
+                List<OpennlpRunnable> runnables = new ArrayList<>();
+                for (int i = 0; i < runs; i++) {
+                    String city = randomFrom("Munich", "Stockholm", "Madrid", "Cologne", "Paris", "London", "Amsterdam");
+                    OpennlpRunnable runnable = new OpennlpRunnable(i, city, latch);
+                    runnables.add(runnable);
+                    batchExecutor.submit(runnable);
+                }
+                latch.await(30, TimeUnit.SECONDS);
+                for (OpennlpRunnable runnable : runnables) {
+                    runnable.assertResultIsCorrect();
+                }
+            } finally {
+                terminate(batchExecutor);
+            }
+        }
+
+        assertThat(service.getNameFinderPool("locations").created(), lessThanOrEqualTo(10L));
+        assertThat(service.getNameFinderPool("locations").reused(), greaterThan(0L));
+    }
+
     private class OpennlpRunnable implements Runnable {
 
         private int idx;
         final String city;
         private CountDownLatch latch;
         String result;
+        String sentiment;
 
         OpennlpRunnable(int idx, String city, CountDownLatch latch) {
             this.idx = idx;
@@ -98,6 +155,7 @@ public class OpenNlpThreadSafeTests extends ESTestCase {
                 if (locations.size() > 0) {
                     result = locations.stream().findFirst().get();
                 }
+                sentiment = service.getSentiment(city + " is really an awesome city, but others are as well.");
             } catch (Exception e) {
                 logger.error((Supplier<?>) () -> new ParameterizedMessage("Unexpected exception"), e);
             } finally {
@@ -107,6 +165,7 @@ public class OpenNlpThreadSafeTests extends ESTestCase {
 
         private void assertResultIsCorrect() {
             assertThat(String.format(Locale.ROOT, "Expected task %s to have result %s", idx, city), result, is(city));
+            assertThat(String.format(Locale.ROOT, "Expected task %s to have a sentiment", idx), sentiment, notNullValue());
         }
     }
 }
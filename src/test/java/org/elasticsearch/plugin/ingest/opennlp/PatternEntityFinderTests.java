@@ -0,0 +1,146 @@
+/*
+ * Copyright [2016] [Alexander Reelsen]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.elasticsearch.plugin.ingest.opennlp;
+
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.set.Sets;
+import org.elasticsearch.test.ESTestCase;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+
+public class PatternEntityFinderTests extends ESTestCase {
+
+    private static final Settings PATTERNS = Settings.builder()
+            .put("emails", "[\\w.+-]+@[\\w-]+(\\.[\\w-]+)+")
+            .put("percentages", "\\d+(\\.\\d+)? ?%")
+            .put("urls", "https?://[^\\s]+")
+            .build();
+
+    public void testThatAllPatternsAreFoundInOneScan() {
+        PatternEntityFinder finder = PatternEntityFinder.create(PATTERNS);
+        Map<String, Set<String>> entities = entities("emails", "percentages", "urls");
+        OpenNlpStats stats = new OpenNlpStats();
+
+        finder.find("Write to jane.doe@example.com or see https://example.com/about, shares rose 3.5 % today.", entities, stats);
+
+        assertThat(entities.get("emails"), containsInAnyOrder("jane.doe@example.com"));
+        assertThat(entities.get("urls"), containsInAnyOrder("https://example.com/about,"));
+        assertThat(entities.get("percentages"), containsInAnyOrder("3.5 %"));
+        assertThat(stats.patternScans().count(), is(1L));
+    }
+
+    public void testThatOnlyRequestedPatternsAreReturned() {
+        PatternEntityFinder finder = PatternEntityFinder.create(PATTERNS);
+        Map<String, Set<String>> entities = entities("percentages");
+
+        finder.find("Write to jane.doe@example.com, shares rose 12% today.", entities, new OpenNlpStats());
+
+        assertThat(entities.keySet(), containsInAnyOrder("percentages"));
+        assertThat(entities.get("percentages"), containsInAnyOrder("12%"));
+    }
+
+    public void testThatFirstPatternWinsAtTheSamePosition() {
+        Settings settings = Settings.builder()
+                .put("a_numbers", "\\d+")
+                .put("b_amounts", "\\d+ dollars")
+                .build();
+        PatternEntityFinder finder = PatternEntityFinder.create(settings);
+        Map<String, Set<String>> entities = entities("a_numbers", "b_amounts");
+
+        finder.find("It costs 100 dollars", entities, new OpenNlpStats());
+
+        assertThat(entities.get("a_numbers"), containsInAnyOrder("100"));
+        assertThat(entities.get("b_amounts"), hasSize(0));
+    }
+
+    public void testThatMatchesWithinAnotherMatchAreLost() {
+        Settings settings = Settings.builder()
+                .put("domains", "\\b[\\w-]+\\.(com|org)\\b")
+                .put("emails", "[\\w.+-]+@[\\w-]+(\\.[\\w-]+)+")
+                .build();
+        PatternEntityFinder finder = PatternEntityFinder.create(settings);
+        Map<String, Set<String>> entities = entities("domains", "emails");
+
+        finder.find("Write to kobe@lakers.com or visit nba.com", entities, new OpenNlpStats());
+
+        assertThat(entities.get("emails"), containsInAnyOrder("kobe@lakers.com"));
+        // the domain of the email address is part of the email match
+        assertThat(entities.get("domains"), containsInAnyOrder("nba.com"));
+    }
+
+    public void testThatPatternsAreTimedPeriodically() {
+        PatternEntityFinder finder = PatternEntityFinder.create(PATTERNS);
+        OpenNlpStats stats = new OpenNlpStats();
+        for (int i = 0; i < PatternEntityFinder.SAMPLE_INTERVAL - 1; i++) {
+            finder.find("shares rose 12% today", entities("percentages"), stats);
+        }
+        assertThat(stats.pattern("percentages"), nullValue());
+
+        finder.find("shares rose 12% today", entities("percentages"), stats);
+        for (String pattern : PATTERNS.getAsMap().keySet()) {
+            assertThat(stats.pattern(pattern), notNullValue());
+            assertThat(stats.pattern(pattern).count(), is(1L));
+        }
+        assertThat(stats.patternScans().count(), is((long) PatternEntityFinder.SAMPLE_INTERVAL));
+    }
+
+    public void testThatInvalidPatternsAreRejected() {
+        ElasticsearchException e = expectThrows(ElasticsearchException.class,
+                () -> PatternEntityFinder.create(Settings.builder().put("broken", "[a-z").build()));
+        assertThat(e.getMessage(), containsString("broken"));
+    }
+
+    public void testThatEmptySettingsCreateNoFinder() {
+        assertThat(PatternEntityFinder.create(Settings.EMPTY), nullValue());
+    }
+
+    public void testThatServiceUsesPatterns() throws Exception {
+        Settings settings = Settings.builder()
+                .put("ingest.opennlp.model.file.names", "en-ner-persons.bin")
+                .put("ingest.opennlp.pattern.emails", "[\\w.+-]+@[\\w-]+(\\.[\\w-]+)+")
+                .build();
+        OpenNlpService service = new OpenNlpService(getDataPath("/models/en-ner-persons.bin").getParent(), settings).start();
+
+        assertThat(service.getModels(), containsInAnyOrder("names", "emails"));
+        Map<String, Set<String>> entities = service.analyze("Kobe Bryant can be reached at kobe@example.com",
+                Sets.newHashSet("names", "emails"));
+        assertThat(entities.get("names"), containsInAnyOrder("Kobe Bryant"));
+        assertThat(entities.get("emails"), containsInAnyOrder("kobe@example.com"));
+
+        assertThat(service.find("Nothing to see at nobody@example.com", "emails"), containsInAnyOrder("nobody@example.com"));
+    }
+
+    private static Map<String, Set<String>> entities(String... names) {
+        Map<String, Set<String>> entities = new HashMap<>();
+        for (String name : names) {
+            entities.put(name, new HashSet<>());
+        }
+        return entities;
+    }
+}
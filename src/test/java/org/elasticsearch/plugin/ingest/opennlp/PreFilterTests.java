@@ -0,0 +1,104 @@
+/*
+ * Copyright [2016] [Alexander Reelsen]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.elasticsearch.plugin.ingest.opennlp;
+
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.common.util.set.Sets;
+import org.elasticsearch.test.ESTestCase;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+
+public class PreFilterTests extends ESTestCase {
+
+    private static final Set<String> FIELDS = Collections.unmodifiableSet(Sets.newHashSet("names", "dates"));
+
+    public void testThatShortTextIsSkipped() {
+        PreFilter filter = new PreFilter(20, 0, 1, 0);
+        OpenNlpStats stats = new OpenNlpStats();
+
+        assertThat(filter.filter("Kobe Bryant", FIELDS, stats).isEmpty(), is(true));
+        assertThat(filter.filter("Kobe Bryant was one of the best", FIELDS, stats), sameInstance(FIELDS));
+        assertThat(stats.preFilterSkipped(PreFilter.Reason.MIN_LENGTH), is(1L));
+        assertThat(stats.preFilterPassed(), is(1L));
+    }
+
+    public void testThatLowerCaseTextIsSkipped() {
+        PreFilter filter = new PreFilter(0, 0.1, 1, 0);
+        OpenNlpStats stats = new OpenNlpStats();
+
+        assertThat(filter.filter("user logged in from host web-01 after 3 attempts", FIELDS, stats).isEmpty(), is(true));
+        // opening quotes and brackets do not hide a capital letter
+        assertThat(filter.filter("\"Kobe\" (Bryant) was one of the best", FIELDS, stats), sameInstance(FIELDS));
+        assertThat(stats.preFilterSkipped(PreFilter.Reason.MIN_CAPITALIZED_RATIO), is(1L));
+    }
+
+    public void testThatMachineGeneratedTextIsSkipped() {
+        PreFilter filter = new PreFilter(0, 0, 0.5, 0);
+        OpenNlpStats stats = new OpenNlpStats();
+
+        assertThat(filter.filter("3f2a9c0b-11e4 10.0.0.1:9200 0x7ffe42", FIELDS, stats).isEmpty(), is(true));
+        assertThat(filter.filter("   ", FIELDS, stats).isEmpty(), is(true));
+        assertThat(filter.filter("Munich is really an awesome city.", FIELDS, stats), sameInstance(FIELDS));
+        assertThat(stats.preFilterSkipped(PreFilter.Reason.MAX_NON_LETTER_RATIO), is(2L));
+    }
+
+    public void testThatTextWithTooFewCandidatesIsSkipped() {
+        PreFilter filter = new PreFilter(0, 0, 1, 2);
+        OpenNlpStats stats = new OpenNlpStats();
+
+        assertThat(filter.filter("we met Kobe on monday", FIELDS, stats).isEmpty(), is(true));
+        assertThat(filter.filter("we met Kobe Bryant on monday", FIELDS, stats), sameInstance(FIELDS));
+        assertThat(filter.filter("we met nobody on monday", FIELDS, stats).isEmpty(), is(true));
+        assertThat(stats.preFilterSkipped(PreFilter.Reason.MIN_CANDIDATES), is(2L));
+        assertThat(stats.preFilterPassed(), is(1L));
+    }
+
+    public void testParsing() {
+        assertThat(PreFilter.parse("opennlp", "tag", new HashMap<>()), nullValue());
+
+        Map<String, Object> prefilter = new HashMap<>();
+        prefilter.put("min_length", 10);
+        prefilter.put("min_capitalized_ratio", 0.1);
+        prefilter.put("max_non_letter_ratio", "0.5");
+        prefilter.put("min_candidates", 1);
+        Map<String, Object> config = new HashMap<>();
+        config.put("prefilter", prefilter);
+        PreFilter filter = PreFilter.parse("opennlp", "tag", config);
+        assertThat(config.isEmpty(), is(true));
+        assertThat(filter.filter("too short", FIELDS, new OpenNlpStats()).isEmpty(), is(true));
+
+        config.put("prefilter", Collections.singletonMap("max_non_letter_ratio", 2));
+        ElasticsearchException e = expectThrows(ElasticsearchException.class, () -> PreFilter.parse("opennlp", "tag", config));
+        assertThat(e.getMessage(), containsString("between 0 and 1"));
+
+        config.put("prefilter", Collections.singletonMap("min_lenght", 2));
+        e = expectThrows(ElasticsearchException.class, () -> PreFilter.parse("opennlp", "tag", config));
+        assertThat(e.getMessage(), containsString("min_lenght"));
+
+        config.put("prefilter", Collections.singletonMap("min_candidates", Collections.singletonMap("names", 1)));
+        expectThrows(ElasticsearchException.class, () -> PreFilter.parse("opennlp", "tag", config));
+    }
+}
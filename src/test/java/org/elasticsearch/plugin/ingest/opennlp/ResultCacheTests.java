@@ -0,0 +1,79 @@
+/*
+ * Copyright [2016] [Alexander Reelsen]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.elasticsearch.plugin.ingest.opennlp;
+
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.set.Sets;
+import org.elasticsearch.test.ESTestCase;
+
+import java.util.Set;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+
+public class ResultCacheTests extends ESTestCase {
+
+    public void testThatCacheIsDisabledByDefault() {
+        assertThat(ResultCache.create(Settings.EMPTY), nullValue());
+    }
+
+    public void testThatResultsAreKeyedByContentAndGeneration() {
+        ResultCache cache = ResultCache.create(Settings.builder().put("ingest.opennlp.cache.enabled", true).build());
+
+        ResultCache.ContentHash hash = ResultCache.hash("Kobe Bryant was one of the best basketball players of all time.");
+        cache.put(1, hash, "Positive");
+
+        assertThat(cache.get(1, ResultCache.hash("Kobe Bryant was one of the best basketball players of all time.")), is("Positive"));
+        assertThat(cache.get(2, hash), nullValue());
+        assertThat(cache.get(1, ResultCache.hash("Michael Jordan was one of the best basketball players of all time.")), nullValue());
+        assertThat(cache.stats().getHits(), is(1L));
+        assertThat(cache.stats().getMisses(), is(2L));
+    }
+
+    public void testThatCacheIsBoundedByWeight() {
+        ResultCache cache = ResultCache.create(Settings.builder()
+                .put("ingest.opennlp.cache.enabled", true)
+                .put("ingest.opennlp.cache.size", "1kb")
+                .build());
+
+        for (int i = 0; i < 100; i++) {
+            cache.put(1, ResultCache.hash("document " + i), Sets.newHashSet("Kobe Bryant", "Michael Jordan"));
+        }
+        assertThat(cache.weight() <= 1024, is(true));
+        assertThat(cache.stats().getEvictions() > 0, is(true));
+    }
+
+    public void testThatServiceServesCopiesFromCache() throws Exception {
+        Settings settings = Settings.builder()
+                .put("ingest.opennlp.model.file.names", "en-ner-persons.bin")
+                .put("ingest.opennlp.cache.enabled", true)
+                .build();
+        OpenNlpService service = new OpenNlpService(getDataPath("/models/en-ner-persons.bin").getParent(), settings).start();
+        String content = "Kobe Bryant was one of the best basketball players of all time.";
+
+        Set<String> names = service.find(content, "names");
+        assertThat(names, contains("Kobe Bryant"));
+        names.add("Michael Jordan");
+
+        // the second call is a hit, and modifying the first result must not leak into the cache
+        assertThat(service.find(content, "names"), contains("Kobe Bryant"));
+        assertThat(service.getResultCache().stats().getHits(), is(1L));
+        assertThat(service.getResultCache().count(), is(1));
+    }
+}
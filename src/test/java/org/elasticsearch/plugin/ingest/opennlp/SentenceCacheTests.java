@@ -0,0 +1,127 @@
+/*
+ * Copyright [2016] [Alexander Reelsen]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.elasticsearch.plugin.ingest.opennlp;
+
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.set.Sets;
+import org.elasticsearch.test.ESTestCase;
+
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Set;
+
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+
+public class SentenceCacheTests extends ESTestCase {
+
+    public void testThatHashIgnoresWhitespaceDifferences() {
+        long hash = SentenceCache.hash("Read more at example.com");
+        assertThat(SentenceCache.hash("  Read  more\tat\nexample.com "), is(hash));
+        assertThat(SentenceCache.hash("Read more at example.org"), not(equalTo(hash)));
+        assertThat(SentenceCache.hash("Readmore at example.com"), not(equalTo(hash)));
+    }
+
+    public void testThatEntriesAreKeyedByModelGeneration() {
+        SentenceCache cache = new SentenceCache(1024);
+        String sentence = "Kobe Bryant was one of the best basketball players of all time.";
+        long hash = SentenceCache.hash(sentence);
+        long check = SentenceCache.check(sentence);
+        cache.put(SentenceCache.key(hash, 1), check, new String[] { "Kobe Bryant" });
+
+        assertThat(cache.get(SentenceCache.key(hash, 1), check), equalTo(new String[] { "Kobe Bryant" }));
+        assertThat(cache.get(SentenceCache.key(hash, 2), check), nullValue());
+        assertThat(cache.hits(), is(1L));
+        assertThat(cache.misses(), is(1L));
+    }
+
+    public void testThatEmptyResultsShareOneArray() {
+        SentenceCache cache = new SentenceCache(1024);
+        long key = SentenceCache.key(SentenceCache.hash("Nothing to see here."), 1);
+        long check = SentenceCache.check("Nothing to see here.");
+        cache.put(key, check, new String[0]);
+        assertThat(cache.get(key, check), sameInstance(SentenceCache.NO_ENTITIES));
+    }
+
+    public void testThatSentencesSharingAKeyAreToldApart() {
+        SentenceCache cache = new SentenceCache(1024);
+        // as if both sentences had the same 64 bit hash
+        long key = SentenceCache.key(SentenceCache.hash("Kobe Bryant played in Los Angeles."), 1);
+        cache.put(key, SentenceCache.check("Kobe Bryant played in Los Angeles."), new String[] { "Kobe Bryant" });
+
+        assertThat(cache.get(key, SentenceCache.check("Nothing to see here.")), nullValue());
+        assertThat(SentenceCache.check("  Kobe Bryant  played in\tLos Angeles. "),
+                is(SentenceCache.check("Kobe Bryant played in Los Angeles.")));
+    }
+
+    public void testThatCacheIsBounded() {
+        SentenceCache cache = new SentenceCache(64);
+        for (int i = 0; i < 10000; i++) {
+            String sentence = "sentence " + i;
+            cache.put(SentenceCache.key(SentenceCache.hash(sentence), 1), SentenceCache.check(sentence), SentenceCache.NO_ENTITIES);
+        }
+        assertThat(cache.evictions(), greaterThan(0L));
+
+        cache.clear();
+        assertThat(cache.get(SentenceCache.key(SentenceCache.hash("sentence 9999"), 1), SentenceCache.check("sentence 9999")),
+                nullValue());
+    }
+
+    public void testThatServiceSkipsRepeatedSentences() throws Exception {
+        Settings settings = Settings.builder()
+                .put("ingest.opennlp.model.file.names", "en-ner-persons.bin")
+                .put("ingest.opennlp.model.file.locations", "en-ner-locations.bin")
+                .put("ingest.opennlp.tokenizer.file.sentences", "en-sent.bin")
+                .put("ingest.opennlp.sentence_cache.enabled", true)
+                .build();
+        OpenNlpService service = new OpenNlpService(getDataPath("/models/en-ner-persons.bin").getParent(), settings).start();
+        String footer = " Munich is really an awesome city, but New York is as well.";
+
+        service.find("Kobe Bryant was one of the best basketball players of all time." + footer, "locations");
+        Set<String> locations = service.find("Not even Michael Jordan has ever scored 81 points in one game." + footer, "locations");
+
+        assertThat(locations, containsInAnyOrder("Munich", "New York"));
+        assertThat(service.getSentenceCache().hits(), is(1L));
+    }
+
+    public void testThatCachedAndUncachedRunsFindTheSameEntities() throws Exception {
+        Settings.Builder builder = Settings.builder()
+                .put("ingest.opennlp.model.file.names", "en-ner-persons.bin")
+                .put("ingest.opennlp.model.file.locations", "en-ner-locations.bin")
+                .put("ingest.opennlp.tokenizer.file.sentences", "en-sent.bin");
+        Path models = getDataPath("/models/en-ner-persons.bin").getParent();
+        OpenNlpService uncached = new OpenNlpService(models, builder.build()).start();
+        OpenNlpService cached = new OpenNlpService(models, builder.put("ingest.opennlp.sentence_cache.enabled", true).build()).start();
+        String text = "Kobe Bryant was one of the best basketball players of all time. Not even Michael Jordan has ever scored " +
+                "81 points in one game. Kobe Bryant grew up in Italy. Munich is really an awesome city, but New York is as well. " +
+                "Michael Jordan played in Chicago.";
+        Set<String> fields = Sets.newHashSet("names", "locations");
+
+        Map<String, Set<String>> expected = uncached.analyze(text, fields);
+        assertThat(cached.analyze(text, fields), equalTo(expected));
+        assertThat(cached.getSentenceCache().hits(), is(0L));
+        // the second run is answered from the cache only
+        assertThat(cached.analyze(text, fields), equalTo(expected));
+        assertThat(cached.getSentenceCache().hits(), is(10L));
+    }
+}
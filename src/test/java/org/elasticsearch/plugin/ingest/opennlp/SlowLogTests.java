@@ -0,0 +1,85 @@
+/*
+ * Copyright [2016] [Alexander Reelsen]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.elasticsearch.plugin.ingest.opennlp;
+
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.test.ESTestCase;
+
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+
+public class SlowLogTests extends ESTestCase {
+
+    private static final String TEXT = "Kobe Bryant was one of the best basketball players of all times. Not even Michael Jordan has " +
+            "ever scored 81 points in one game. Munich is really an awesome city, but New York is as well.";
+
+    public void testThatSlowLogIsDisabledByDefault() {
+        assertThat(SlowLog.create(Settings.EMPTY), is(nullValue()));
+        assertThat(SlowLog.create(Settings.builder().put("ingest.opennlp.slowlog.threshold.info", "1s").build()), is(notNullValue()));
+    }
+
+    public void testThatStagesAreTimed() throws Exception {
+        Settings settings = Settings.builder()
+                .put("ingest.opennlp.model.file.names", "en-ner-persons.bin")
+                .put("ingest.opennlp.model.file.locations", "en-ner-locations.bin")
+                .put("ingest.opennlp.tokenizer.file.sentences", "en-sent.bin")
+                .put("ingest.opennlp.misc.file.sentiment", "en-stanford-sentiment.bin")
+                .put("ingest.opennlp.slowlog.threshold.warn", "10s")
+                .build();
+        OpenNlpService service = new OpenNlpService(getDataPath("/models/en-ner-persons.bin").getParent(), settings).start();
+
+        SlowLog.Timings timings = new SlowLog.Timings();
+        service.run(() -> {
+            service.analyze(TEXT, service.getModels());
+            service.getSentiment(TEXT);
+        }, timings);
+
+        assertThat(timings.length, is((long) TEXT.length()));
+        assertThat(timings.sentences, is(3L));
+        assertThat(timings.tokens, greaterThan(0L));
+        assertThat(timings.sentenceDetectionNanos, greaterThan(0L));
+        assertThat(timings.sentimentNanos, greaterThan(0L));
+        assertThat(timings.modelNanos.keySet(), containsInAnyOrder("names", "locations"));
+    }
+
+    public void testThatMessageHasBreakdownAndTruncatedSource() {
+        SlowLog.Timings timings = new SlowLog.Timings();
+        timings.onDocument(TEXT.length(), 3, 40, 2_000_000);
+        timings.onModel("names", 5_000_000);
+        timings.onModel("locations", 3_000_000);
+        timings.sentenceDetectionNanos = 1_000_000;
+
+        SlowLog slowLog = new SlowLog(TimeValue.timeValueMillis(10), TimeValue.timeValueNanos(-1), TimeValue.timeValueNanos(-1), 10,
+                logger);
+        String message = slowLog.message("tenant-a", "index", "1", "Kobe Bryant\nwas one", false, timings, 12_000_000);
+        assertThat(message, containsString("[index][1] took[12ms], took_millis[12], tag[tenant-a]"));
+        assertThat(message, containsString("sentences[3], tokens[40]"));
+        assertThat(message, containsString("models[locations[3ms], names[5ms]]"));
+        assertThat(message, containsString("source[Kobe Bryan]"));
+
+        SlowLog withoutSource = new SlowLog(TimeValue.timeValueMillis(10), TimeValue.timeValueNanos(-1), TimeValue.timeValueNanos(-1),
+                0, logger);
+        assertThat(withoutSource.message("tenant-a", "index", "1", TEXT, false, timings, 12_000_000), not(containsString("source[")));
+    }
+}
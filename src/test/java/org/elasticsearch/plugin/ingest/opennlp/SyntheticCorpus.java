@@ -0,0 +1,115 @@
+/*
+ * Copyright [2016] [Alexander Reelsen]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.elasticsearch.plugin.ingest.opennlp;
+
+import java.util.Random;
+
+/**
+ * Generates reproducible documents in several languages without any download, the same seed always yields the same
+ * documents. Sentences are filled with names, places, organizations and dates, so every model has something to find.
+ */
+final class SyntheticCorpus {
+
+    private static final String[][] TEMPLATES = new String[][] {
+            {
+                    "{person} met {person} in {place} on {date} to discuss the merger with {organization}.",
+                    "Shares of {organization} rose 4 percent after {person} presented the results in {place}.",
+                    "The weather in {place} was nice, so we spent the afternoon in the park.",
+                    "{person} has been the best player of the season, said the coach of {organization}.",
+                    "Read more at example.com and follow us for further updates.",
+            },
+            {
+                    "{person} traf {person} am {date} in {place}, um über die Übernahme von {organization} zu sprechen.",
+                    "Die Aktie von {organization} stieg um 4 Prozent, nachdem {person} in {place} die Zahlen vorgestellt hatte.",
+                    "Das Wetter in {place} war schön, also haben wir den Nachmittag im Park verbracht.",
+                    "Weitere Informationen finden Sie auf unserer Webseite.",
+            },
+            {
+                    "{person} a rencontré {person} à {place} le {date} pour parler de la fusion avec {organization}.",
+                    "L'action de {organization} a gagné 4 pour cent après la présentation de {person} à {place}.",
+                    "Il faisait beau à {place}, alors nous avons passé l'après-midi au parc.",
+            },
+            {
+                    "{person} se reunió con {person} en {place} el {date} para hablar de la fusión con {organization}.",
+                    "Las acciones de {organization} subieron un 4 por ciento después de que {person} presentara los resultados.",
+                    "Hacía buen tiempo en {place}, así que pasamos la tarde en el parque.",
+            },
+    };
+
+    private static final String[] PERSONS = new String[] {
+            "Angela Merkel", "Emmanuel Macron", "Kobe Bryant", "Michael Jordan", "Pedro Sánchez", "Marie Curie",
+            "John Smith", "Anna Schmidt", "Jean Dupont", "Lucía García",
+    };
+    private static final String[] PLACES = new String[] {
+            "Munich", "New York", "Paris", "Madrid", "Berlin", "London", "Lyon", "Barcelona", "Hamburg", "Chicago",
+    };
+    private static final String[] ORGANIZATIONS = new String[] {
+            "Siemens", "General Electric", "Renault", "Telefónica", "Deutsche Bank", "Microsoft", "Airbus",
+    };
+    private static final String[] DATES = new String[] {
+            "Monday", "Tuesday", "March 3", "12. Mai", "5 juin", "10 de octubre", "yesterday",
+    };
+
+    private final Random random;
+
+    SyntheticCorpus(long seed) {
+        this.random = new Random(seed);
+    }
+
+    /**
+     * @return a document of roughly the given number of characters, all in one language, which is English for about
+     * half of the documents
+     */
+    String document(int length) {
+        String[] templates = TEMPLATES[random.nextBoolean() ? 0 : 1 + random.nextInt(TEMPLATES.length - 1)];
+        StringBuilder builder = new StringBuilder(length + 128);
+        while (builder.length() < length) {
+            if (builder.length() > 0) {
+                builder.append(' ');
+            }
+            fill(templates[random.nextInt(templates.length)], builder);
+        }
+        return builder.toString();
+    }
+
+    private void fill(String template, StringBuilder builder) {
+        int start = 0;
+        for (int open = template.indexOf('{'); open >= 0; open = template.indexOf('{', start)) {
+            int close = template.indexOf('}', open);
+            builder.append(template, start, open);
+            builder.append(pick(template.substring(open + 1, close)));
+            start = close + 1;
+        }
+        builder.append(template, start, template.length());
+    }
+
+    private String pick(String slot) {
+        switch (slot) {
+            case "person":
+                return PERSONS[random.nextInt(PERSONS.length)];
+            case "place":
+                return PLACES[random.nextInt(PLACES.length)];
+            case "organization":
+                return ORGANIZATIONS[random.nextInt(ORGANIZATIONS.length)];
+            case "date":
+                return DATES[random.nextInt(DATES.length)];
+            default:
+                throw new IllegalArgumentException("unknown slot [" + slot + "]");
+        }
+    }
+}
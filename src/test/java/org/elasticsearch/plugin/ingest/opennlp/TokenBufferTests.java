@@ -0,0 +1,86 @@
+/*
+ * Copyright [2016] [Alexander Reelsen]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.elasticsearch.plugin.ingest.opennlp;
+
+import opennlp.tools.tokenize.SimpleTokenizer;
+import opennlp.tools.util.Span;
+import org.elasticsearch.test.ESTestCase;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.hamcrest.Matchers.arrayContaining;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+
+public class TokenBufferTests extends ESTestCase {
+
+    public void testThatTokensMatchSimpleTokenizer() {
+        TokenBuffer buffer = new TokenBuffer();
+        String[] texts = new String[] {
+                "", "   ", "Kobe Bryant was one of the best basketball players of all time.",
+                "Wait... what?! It cost $1,000.50 (roughly) -- on 2017-01-01.", " non breaking spaces\t\n",
+                "e-mail: joe@example.com, #hashtag", randomUnicodeOfLengthBetween(0, 200), randomAlphaOfLengthBetween(0, 200)
+        };
+        for (String text : texts) {
+            Span[] expected = SimpleTokenizer.INSTANCE.tokenizePos(text);
+            assertThat(text, buffer.tokenize(text, 0, text.length()), is(expected.length));
+            for (int i = 0; i < expected.length; i++) {
+                assertThat(text, buffer.start(i), is(expected[i].getStart()));
+                assertThat(text, buffer.end(i), is(expected[i].getEnd()));
+            }
+            assertThat(buffer.toStrings(text), equalTo(SimpleTokenizer.INSTANCE.tokenize(text)));
+        }
+    }
+
+    public void testThatOffsetsReferToTheWholeText() {
+        TokenBuffer buffer = new TokenBuffer();
+        String text = "First sentence. Angela Merkel met Barack Obama.";
+        buffer.tokenize(text, 16, text.length());
+        assertThat(buffer.toStrings(text), arrayContaining("Angela", "Merkel", "met", "Barack", "Obama", "."));
+        assertThat(buffer.start(0), is(16));
+    }
+
+    public void testThatBufferGrows() {
+        TokenBuffer buffer = new TokenBuffer();
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            text.append("token").append(i).append(' ');
+        }
+        // letters and digits are separate tokens
+        assertThat(buffer.tokenize(text, 0, text.length()), is(2000));
+        buffer.trim();
+        assertThat(buffer.size(), is(0));
+    }
+
+    public void testThatCollectorJoinsTokensAndDeduplicates() {
+        String text = "Mr.  Obama met Mr. Obama and\nMr. \tObama in New York.";
+        TokenBuffer buffer = new TokenBuffer();
+        EntityCollector collector = new EntityCollector();
+        collector.add(0, 10);
+        collector.add(15, 24);
+        collector.add(29, 39);
+        collector.add(43, 51);
+
+        Set<String> entities = new HashSet<>();
+        collector.addTo(entities, text, buffer);
+        // the same as Span.spansToStrings, which joins the tokens by a single space
+        assertThat(entities, containsInAnyOrder("Mr . Obama", "New York"));
+    }
+}